@@ -0,0 +1,68 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/*
+ * Creating and closing one session across N dependencies, either all independent or each registered after the last
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DependencyFanoutBenchmark {
+    @Param({"1", "4", "16"})
+    private int dependencies;
+
+    @Param({"false", "true"})
+    private boolean chained;
+
+    @Param({"0", "1000"})
+    private long work; // Blackhole tokens burnt per callback
+
+    private DependencyGraph graph;
+
+    @Setup
+    public void setup(){
+        graph = new DependencyGraph(Logger.getLogger("DependencyFanoutBenchmark"), new SessionMetrics());
+        graph.setDefaultTimeout(10000);
+
+        for (int x = 0; x < dependencies; x++){
+            String[] after = chained && x > 0 ? new String[]{"dependency-" + (x - 1)} : new String[0];
+            graph.register(new SessionDependency() {
+                @Override
+                public void onSessionCreate(UUID player){
+                    Blackhole.consumeCPU(work);
+                }
+
+                @Override
+                public void onSessionClose(UUID player){
+                    Blackhole.consumeCPU(work);
+                }
+            }, "dependency-" + x, -1, after);
+        }
+    }
+
+    @TearDown
+    public void tearDown(){
+        graph.shutdown();
+    }
+
+    @Benchmark
+    public void create(){
+        graph.create(UUID.randomUUID()).join();
+    }
+
+    @Benchmark
+    public void close(){
+        graph.close(UUID.randomUUID()).join();
+    }
+}
@@ -0,0 +1,184 @@
+package net.crashcraft.sessionmanager;
+
+import co.aikar.idb.Database;
+import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.cache.SessionCache;
+import net.crashcraft.sessionmanager.cache.SimulatedData;
+import net.crashcraft.sessionmanager.config.GlobalConfig;
+import net.crashcraft.sessionmanager.harness.HeadlessServer;
+import net.crashcraft.sessionmanager.harness.MemoryDatabase;
+import net.crashcraft.sessionmanager.harness.SimulatedNode;
+import org.bukkit.configuration.file.YamlConfiguration;
+import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.plugin.java.JavaPluginLoader;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/*
+ * SessionManager enabled on a HeadlessServer against a MemoryDatabase, players join and leave through the real listeners
+ */
+public class HeadlessSessionManager extends SessionManager implements SimulatedNode {
+    private static final InetAddress ADDRESS = InetAddress.getLoopbackAddress();
+
+    private final HeadlessServer server;
+    private final String serverName;
+    private final String database;
+
+    private SessionEvents events;
+
+    private HeadlessSessionManager(HeadlessServer server, String serverName, File dataFolder, String database){
+        super(new JavaPluginLoader(server.getServer()), new PluginDescriptionFile("SessionManager-" + serverName, "headless", SessionManager.class.getName()),
+                dataFolder, new File(dataFolder, "SessionManager.jar"));
+
+        this.server = server;
+        this.serverName = serverName;
+        this.database = database;
+    }
+
+    /*
+     * Loads and enables a node on the main thread, entries in config override the harness defaults in config.yml
+     */
+    public static HeadlessSessionManager start(String serverName, String database, Map<String, Object> config) throws Exception {
+        HeadlessServer server = HeadlessServer.install(serverName);
+        File dataFolder = Files.createTempDirectory("sessionmanager-" + serverName).toFile();
+
+        YamlConfiguration yaml = new YamlConfiguration();
+        yaml.set("server-name", serverName);
+        yaml.set("handoff.transport", "local");
+        yaml.set("metrics.export-file", "");
+        yaml.set("journal.segment-size-kb", 256);
+        yaml.set("journal.max-segments", 2);
+        for (Map.Entry<String, Object> entry : config.entrySet()){
+            yaml.set(entry.getKey(), entry.getValue());
+        }
+        yaml.save(new File(dataFolder, "config.yml"));
+
+        HeadlessSessionManager manager = new HeadlessSessionManager(server, serverName, dataFolder, database);
+        server.getScheduler().callOnMain(() -> {
+            manager.onLoad();
+            manager.setEnabled(true);
+            return null;
+        });
+
+        if (server.isShutdownRequested()){
+            throw new IllegalStateException("SessionManager " + serverName + " failed to enable, see the log");
+        }
+
+        manager.events = new SessionEvents(manager);
+        return manager;
+    }
+
+    @Override
+    protected Database createDatabase(String lane, int connections) throws SQLException {
+        return MemoryDatabase.open(database, GlobalConfig.serverName, lane, connections);
+    }
+
+    @Override
+    protected void migrateSessions(){
+        // The memory database creates the lease columns with the schema
+    }
+
+    @Override
+    protected void installProcedures(){
+        // The memory database registers its procedures with the schema
+    }
+
+    @Override
+    public String getServerName(){
+        return serverName;
+    }
+
+    /*
+     * Runs the pre-login listeners in the order the server would
+     */
+    @Override
+    public boolean join(UUID uuid, String name){
+        AsyncPlayerPreLoginEvent event = new AsyncPlayerPreLoginEvent(name, ADDRESS, uuid);
+
+        events.onAsyncPlayerPreLoginEvent(event);
+        events.onPreLoginMnoitor(event);
+
+        return event.getLoginResult() == AsyncPlayerPreLoginEvent.Result.ALLOWED;
+    }
+
+    /*
+     * The work onLeave hands to the async scheduler, run on the callers thread
+     */
+    @Override
+    public void quit(UUID uuid){
+        events.cleanup(uuid);
+    }
+
+    @Override
+    public void addDependency(String name, long createMillis, long closeMillis){
+        registerDependency(new SessionDependency() {
+            @Override
+            public void onSessionCreate(UUID player){
+                sleep(createMillis);
+            }
+
+            @Override
+            public void onSessionClose(UUID player){
+                sleep(closeMillis);
+            }
+        }, name);
+    }
+
+    @Override
+    public void addCache(String name){
+        new SessionCache<>(this, SimulatedData.manager(name), this, false);
+    }
+
+    @Override
+    public Map<String, Long> getQueryCounts(){
+        return getMetrics().getQueryCounts();
+    }
+
+    @Override
+    public List<String> getMetricsSummary(){
+        return getMetrics().summary();
+    }
+
+    public HeadlessServer getHeadlessServer(){
+        return server;
+    }
+
+    @Override
+    public void stop() throws Exception {
+        server.getScheduler().callOnMain(() -> {
+            setEnabled(false);
+            return null;
+        });
+
+        server.shutdown();
+
+        try (Stream<Path> files = Files.walk(getDataFolder().toPath())){
+            files.sorted(Comparator.reverseOrder()).forEach(path -> {
+                try {
+                    Files.delete(path);
+                } catch (IOException e){
+                    getLogger().warning("Unable to delete " + path);
+                }
+            });
+        }
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
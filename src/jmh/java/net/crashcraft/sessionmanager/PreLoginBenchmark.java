@@ -0,0 +1,68 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.cache.BenchData;
+import net.crashcraft.sessionmanager.cache.SessionCache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * A full join and leave through the pre-login listener and the session close, against the in-memory database with a
+ * SessionCache registered as the only dependency
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+public class PreLoginBenchmark {
+    private static final int RETURNING = 1024;
+
+    private HeadlessSessionManager manager;
+    private UUID[] returning;
+    private AtomicInteger next;
+
+    @Setup
+    public void setup() throws Exception {
+        manager = HeadlessSessionManager.start("bench", "prelogin", Collections.emptyMap());
+        new SessionCache<>(manager, BenchData.MANAGER, manager, false);
+
+        returning = new UUID[RETURNING];
+        for (int x = 0; x < RETURNING; x++){
+            returning[x] = UUID.randomUUID();
+            join(returning[x]);
+            manager.quit(returning[x]);
+        }
+        next = new AtomicInteger();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    @Benchmark
+    public void firstJoin(){
+        UUID uuid = UUID.randomUUID();
+        join(uuid);
+        manager.quit(uuid);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void returningJoin(){
+        UUID uuid = returning[Math.floorMod(next.getAndIncrement(), RETURNING)];
+        join(uuid);
+        manager.quit(uuid);
+    }
+
+    private void join(UUID uuid){
+        if (!manager.join(uuid, "bench")){
+            throw new IllegalStateException("Join was refused for " + uuid);
+        }
+    }
+}
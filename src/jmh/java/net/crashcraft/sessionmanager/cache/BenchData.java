@@ -0,0 +1,61 @@
+package net.crashcraft.sessionmanager.cache;
+
+import java.util.UUID;
+
+/*
+ * Cache entry with a handful of trivial hooks so benchmarks measure the dispatch and scheduling around them
+ */
+public class BenchData extends CachedData {
+    public static final CacheManager<BenchData> MANAGER = new CacheManager<BenchData>() {
+        @Override
+        public String getCacheName(){
+            return "bench";
+        }
+
+        @Override
+        public int getThreadCount(){
+            return 4;
+        }
+
+        @Override
+        public BenchData createCacheObject(UUID uuid){
+            return new BenchData(uuid);
+        }
+    };
+
+    long counter;
+
+    public BenchData(UUID uuid){
+        super(uuid);
+    }
+
+    @CacheLoader(name = "first", type = LoadType.LOAD, thread = ExecutionType.ASYNC)
+    private void first(){
+        counter++;
+    }
+
+    @CacheLoader(name = "second", type = LoadType.LOAD, thread = ExecutionType.ASYNC)
+    private void second(){
+        counter += 2;
+    }
+
+    @CacheLoader(name = "third", type = LoadType.LOAD, thread = ExecutionType.ASYNC)
+    private void third(){
+        counter += 3;
+    }
+
+    @CacheLoader(name = "fourth", type = LoadType.LOAD, thread = ExecutionType.ASYNC)
+    private void fourth(){
+        counter += 4;
+    }
+
+    @CacheLoader(name = "world", type = LoadType.LOAD, thread = ExecutionType.SYNC)
+    private void world(){
+        counter += 5;
+    }
+
+    @CacheLoader(name = "save", type = LoadType.UNLOAD, thread = ExecutionType.ASYNC)
+    private void save(){
+        counter = 0;
+    }
+}
@@ -0,0 +1,70 @@
+package net.crashcraft.sessionmanager.cache;
+
+import net.crashcraft.sessionmanager.HeadlessSessionManager;
+import org.cache2k.Cache;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The cache2k instance a SessionCache builds, with readers hitting online players while others join and leave
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class CacheContentionBenchmark {
+    private static final int ONLINE = 1024;
+
+    private HeadlessSessionManager manager;
+    private Cache<UUID, BenchData> cache;
+    private UUID[] online;
+
+    @Setup
+    public void setup() throws Exception {
+        manager = HeadlessSessionManager.start("bench", "contention", Collections.emptyMap());
+        cache = new SessionCache<>(manager, BenchData.MANAGER, manager, false).getRawCache();
+
+        online = new UUID[ONLINE];
+        for (int x = 0; x < ONLINE; x++){
+            online[x] = UUID.randomUUID();
+            cache.put(online[x], new BenchData(online[x]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        manager.stop();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public BenchData get(){
+        return cache.get(online[ThreadLocalRandom.current().nextInt(ONLINE)]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public boolean joinLeave(){
+        UUID uuid = UUID.randomUUID();
+        boolean added = cache.putIfAbsent(uuid, new BenchData(uuid));
+        cache.remove(uuid);
+        return added;
+    }
+
+    @Benchmark
+    @Threads(8)
+    public BenchData loaderMiss(){
+        UUID uuid = UUID.randomUUID();
+        BenchData data = cache.get(uuid); // Runs the loader and its sync hooks on the calling thread
+        cache.remove(uuid);
+        return data;
+    }
+}
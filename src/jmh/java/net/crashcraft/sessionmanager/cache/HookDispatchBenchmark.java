@@ -0,0 +1,68 @@
+package net.crashcraft.sessionmanager.cache;
+
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compares the bound method handle dispatch with the old Method.invoke loop over a HashSet of hooks, and the cost of
+ * timing every hook for metrics
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class HookDispatchBenchmark {
+    private Set<Method> reflective;
+    private HookDispatcher dispatcher;
+    private HookDispatcher timed;
+    private BenchData data;
+
+    @Setup
+    public void setup() throws IllegalAccessException {
+        List<Method> methods = new ArrayList<>();
+        for (Method method : BenchData.class.getDeclaredMethods()){
+            CacheLoader loader = method.getDeclaredAnnotation(CacheLoader.class);
+            if (loader != null && loader.type() == LoadType.LOAD && loader.thread() == ExecutionType.ASYNC){
+                method.setAccessible(true);
+                methods.add(method);
+            }
+        }
+
+        reflective = new HashSet<>(methods);
+        dispatcher = HookDispatcher.bind(methods);
+        timed = HookDispatcher.bind(methods, new SessionMetrics(), "cache", "bench");
+        data = new BenchData(UUID.randomUUID());
+    }
+
+    @Benchmark
+    public void reflective(Blackhole blackhole) throws IllegalAccessException, InvocationTargetException {
+        for (Method method : reflective){
+            method.invoke(data);
+        }
+        blackhole.consume(data.counter);
+    }
+
+    @Benchmark
+    public void methodHandle(Blackhole blackhole) throws InvocationTargetException {
+        dispatcher.invoke(data);
+        blackhole.consume(data.counter);
+    }
+
+    @Benchmark
+    public void methodHandleTimed(Blackhole blackhole) throws InvocationTargetException {
+        timed.invoke(data);
+        blackhole.consume(data.counter);
+    }
+}
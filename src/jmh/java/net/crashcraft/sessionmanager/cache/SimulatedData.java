@@ -0,0 +1,65 @@
+package net.crashcraft.sessionmanager.cache;
+
+import java.util.UUID;
+
+/*
+ * Cache entry with a hook of every type and thread for the simulated nodes, the hooks only count so they show up in the
+ * hook metrics
+ */
+public class SimulatedData extends CachedData {
+    long loads;
+    long saves;
+
+    public SimulatedData(UUID uuid){
+        super(uuid);
+    }
+
+    public static CacheManager<SimulatedData> manager(String name){
+        return new CacheManager<SimulatedData>() {
+            @Override
+            public String getCacheName(){
+                return name;
+            }
+
+            @Override
+            public int getThreadCount(){
+                return 4;
+            }
+
+            @Override
+            public SimulatedData createCacheObject(UUID uuid){
+                return new SimulatedData(uuid);
+            }
+        };
+    }
+
+    @CacheLoader(name = "load", type = LoadType.LOAD, thread = ExecutionType.ASYNC)
+    private void load(){
+        loads++;
+    }
+
+    @CacheLoader(name = "world", type = LoadType.LOAD, thread = ExecutionType.SYNC)
+    private void world(){
+        loads++;
+    }
+
+    @CacheLoader(name = "save", type = LoadType.SAVE, thread = ExecutionType.ASYNC)
+    private void save(){
+        saves++;
+    }
+
+    @CacheLoader(name = "inventory", type = LoadType.SAVE, thread = ExecutionType.SYNC)
+    private void inventory(){
+        saves++;
+    }
+
+    @CacheLoader(name = "unload", type = LoadType.UNLOAD, thread = ExecutionType.ASYNC)
+    private void unload(){
+        loads = 0;
+    }
+
+    @CacheLoader(name = "despawn", type = LoadType.UNLOAD, thread = ExecutionType.SYNC)
+    private void despawn(){
+        saves = 0;
+    }
+}
@@ -0,0 +1,62 @@
+package net.crashcraft.sessionmanager.cache;
+
+import net.crashcraft.sessionmanager.HeadlessSessionManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * getUserFuture for an online player against an offline one, a miss runs the async hooks and hops through the main
+ * thread before completing
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class UserFutureBenchmark {
+    private HeadlessSessionManager manager;
+    private SessionCache<BenchData> cache;
+    private UUID online;
+    private UUID offline;
+
+    @Setup
+    public void setup() throws Exception {
+        manager = HeadlessSessionManager.start("bench", "userfuture", Collections.emptyMap());
+        cache = new SessionCache<>(manager, BenchData.MANAGER, manager, false);
+
+        online = UUID.randomUUID();
+        if (!manager.join(online, "online")){
+            throw new IllegalStateException("Unable to join the online player");
+        }
+        offline = UUID.randomUUID();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        manager.quit(online);
+        manager.stop();
+    }
+
+    @Benchmark
+    public BenchData hit(){
+        return cache.getUserFuture(online).join();
+    }
+
+    /*
+     * One offline player looked up from several threads, a leaderboard or /seen hitting the same name
+     */
+    @Benchmark
+    @Threads(4)
+    public BenchData offline(){
+        return cache.getUserFuture(offline).join();
+    }
+
+    @Benchmark
+    public BenchData miss(){
+        return cache.getUserFuture(UUID.randomUUID()).join();
+    }
+}
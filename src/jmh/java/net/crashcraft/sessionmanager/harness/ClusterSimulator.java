@@ -0,0 +1,362 @@
+package net.crashcraft.sessionmanager.harness;
+
+import net.crashcraft.sessionmanager.database.UuidCodec;
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Runs several SessionManager servers in one JVM against a shared in-memory database and pushes join, transfer and
+ * quit storms through their listeners, the way a proxy would after a restart or during a busy evening.
+ *
+ * mvn -P benchmark compile exec:java -Dexec.mainClass=net.crashcraft.sessionmanager.harness.ClusterSimulator -Dexec.args="nodes=4 players=2000"
+ *
+ * Every node is loaded in its own class loader so it gets its own Bukkit server, global database and config. Options
+ * are key=value pairs, see the defaults in main.
+ */
+public final class ClusterSimulator {
+    private static final String DATABASE = "cluster";
+
+    private final List<SimulatedNode> nodes;
+    private final Player[] players;
+    private final int threads;
+
+    private ExecutorService workers;
+    private LatencyHistogram joinTime;
+    private LatencyHistogram transferTime;
+    private LatencyHistogram quitTime;
+    private AtomicInteger refused;
+
+    private ClusterSimulator(List<SimulatedNode> nodes, int players, int threads){
+        this.nodes = nodes;
+        this.players = new Player[players];
+        this.threads = threads;
+
+        for (int x = 0; x < players; x++){
+            this.players[x] = new Player(UUID.randomUUID(), "sim" + x);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args){
+            int split = arg.indexOf('=');
+            if (split < 1){
+                throw new IllegalArgumentException("Options are key=value, got " + arg);
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+
+        int nodeCount = option(options, "nodes", 4);
+        int players = option(options, "players", 2000);
+        int threads = option(options, "threads", 64);
+        int transferSeconds = option(options, "transfer-seconds", 30);
+        int quitPercent = option(options, "quit-percent", 10);
+        int loadMillis = option(options, "load-ms", 5);
+        int saveMillis = option(options, "save-ms", 10);
+
+        if (nodeCount < 2){
+            throw new IllegalArgumentException("Transfers need at least 2 nodes");
+        }
+
+        Map<String, Object> config = new HashMap<>();
+        config.put("handoff.transport", "database");
+        config.put("handoff.poll-interval", option(options, "handoff-poll", 20));
+        config.put("sweeper.min-interval", option(options, "sweeper-min", 100));
+        config.put("sweeper.max-interval", option(options, "sweeper-max", 250));
+        config.put("database.login-connections", option(options, "login-connections", 4));
+        config.put("database.background-connections", option(options, "background-connections", 6));
+        config.put("database.background-busy-limit", option(options, "background-busy-limit", 2));
+
+        Class.forName("org.h2.Driver");
+        try (Connection database = DriverManager.getConnection(MemoryDatabase.url(DATABASE), "sa", "")){ // Holds the database open for the whole run
+            List<SimulatedNode> nodes = new ArrayList<>();
+            for (int x = 0; x < nodeCount; x++){
+                SimulatedNode node = startNode("node-" + x, DATABASE, config);
+                if (loadMillis > 0 || saveMillis > 0){
+                    node.addDependency("simulated-data", loadMillis, saveMillis);
+                }
+                nodes.add(node);
+            }
+
+            ClusterSimulator simulator = new ClusterSimulator(nodes, players, threads);
+            try {
+                simulator.run(database, transferSeconds, quitPercent);
+            } finally {
+                for (SimulatedNode node : nodes){
+                    node.stop();
+                }
+            }
+        }
+    }
+
+    /*
+     * Starts a node in its own class loader against the named memory database, keep the database open while it runs
+     */
+    public static SimulatedNode startNode(String name, String database, Map<String, Object> config) throws Exception {
+        ClassLoader loader = new NodeClassLoader(ClusterSimulator.class.getClassLoader());
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+
+        thread.setContextClassLoader(loader);
+        try {
+            return (SimulatedNode) loader.loadClass("net.crashcraft.sessionmanager.HeadlessSessionManager")
+                    .getMethod("start", String.class, String.class, Map.class)
+                    .invoke(null, name, database, config);
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    private void run(Connection database, int transferSeconds, int quitPercent) throws Exception {
+        Map<String, Long> queriesBefore = queryCounts();
+
+        phase("join storm", () -> {
+            for (Player player : players){
+                submit(() -> join(player, ThreadLocalRandom.current().nextInt(nodes.size())));
+            }
+        });
+        report(database, queriesBefore);
+
+        queriesBefore = queryCounts();
+        phase("transfer storm", () -> {
+            long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(transferSeconds);
+            for (int x = 0; x < threads; x++){
+                submit(() -> {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < end){
+                        Player player = players[random.nextInt(players.length)];
+                        if (!player.lock.tryLock()){
+                            continue;
+                        }
+
+                        try {
+                            if (player.node < 0){
+                                join(player, random.nextInt(nodes.size()));
+                            } else if (random.nextInt(100) < quitPercent){
+                                quit(player);
+                            } else {
+                                transfer(player, (player.node + 1 + random.nextInt(nodes.size() - 1)) % nodes.size());
+                            }
+                        } finally {
+                            player.lock.unlock();
+                        }
+                    }
+                });
+            }
+        });
+        report(database, queriesBefore);
+
+        queriesBefore = queryCounts();
+        phase("quit storm", () -> {
+            for (Player player : players){
+                if (player.node >= 0){
+                    submit(() -> quit(player));
+                }
+            }
+        });
+        report(database, queriesBefore);
+
+        for (SimulatedNode node : nodes){
+            System.out.println("[" + node.getServerName() + "]");
+            for (String line : node.getMetricsSummary()){
+                System.out.println("  " + line);
+            }
+        }
+    }
+
+    private void phase(String name, Runnable submitter) throws InterruptedException {
+        System.out.println("== " + name);
+        joinTime = new LatencyHistogram();
+        transferTime = new LatencyHistogram();
+        quitTime = new LatencyHistogram();
+        refused = new AtomicInteger();
+
+        long start = System.nanoTime();
+        workers = Executors.newFixedThreadPool(threads);
+        submitter.run();
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.HOURS);
+
+        System.out.println(String.format(Locale.ROOT, "took %.1fs", (System.nanoTime() - start) / 1_000_000_000D));
+    }
+
+    private void submit(Runnable task){
+        workers.execute(() -> {
+            try {
+                task.run();
+            } catch (Throwable t){
+                t.printStackTrace();
+            }
+        });
+    }
+
+    private void join(Player player, int node){
+        long start = System.nanoTime();
+        if (nodes.get(node).join(player.uuid, player.name)){
+            player.node = node;
+        } else {
+            refused.incrementAndGet();
+        }
+        joinTime.recordSince(start);
+    }
+
+    /*
+     * The proxy connects to the new server first and only drops the old connection once the player is let in
+     */
+    private void transfer(Player player, int node){
+        int from = player.node;
+
+        long start = System.nanoTime();
+        boolean joined = nodes.get(node).join(player.uuid, player.name);
+        transferTime.recordSince(start);
+
+        nodes.get(from).quit(player.uuid);
+        if (joined){
+            player.node = node;
+        } else {
+            refused.incrementAndGet();
+            player.node = -1;
+        }
+    }
+
+    private void quit(Player player){
+        long start = System.nanoTime();
+        nodes.get(player.node).quit(player.uuid);
+        player.node = -1;
+        quitTime.recordSince(start);
+    }
+
+    private Map<String, Long> queryCounts(){
+        Map<String, Long> counts = new TreeMap<>();
+        for (SimulatedNode node : nodes){
+            for (Map.Entry<String, Long> entry : node.getQueryCounts().entrySet()){
+                counts.merge(entry.getKey(), entry.getValue(), Long::sum);
+            }
+        }
+        return counts;
+    }
+
+    private void report(Connection database, Map<String, Long> queriesBefore) throws SQLException, InterruptedException {
+        print("join", joinTime);
+        print("transfer", transferTime);
+        print("quit", quitTime);
+        System.out.println("refused " + refused.get());
+
+        Thread.sleep(2000); // Let sweepers and releases settle before judging the sessions table
+
+        Map<String, Integer> servers = new HashMap<>();
+        try (Statement statement = database.createStatement();
+             ResultSet result = statement.executeQuery("SELECT id, `name` FROM servers;")){
+            while (result.next()){
+                servers.put(result.getString(2), result.getInt(1));
+            }
+        }
+
+        Map<UUID, Integer> playerIDs = new HashMap<>();
+        Map<Integer, List<int[]>> sessions = new HashMap<>(); // player_id -> [server_id, isclosing]
+        try (Statement statement = database.createStatement();
+             ResultSet result = statement.executeQuery("SELECT p.uuid, p.id, s.server_id, s.isclosing FROM players p LEFT JOIN sessions s ON s.player_id = p.id;")){
+            while (result.next()){
+                int id = result.getInt(2);
+                playerIDs.put(UuidCodec.decode(result.getBytes(1)), id);
+
+                int server = result.getInt(3);
+                if (!result.wasNull()){
+                    sessions.computeIfAbsent(id, k -> new ArrayList<>()).add(new int[]{server, result.getInt(4)});
+                }
+            }
+        }
+
+        int stuck = 0;
+        int missing = 0;
+        int leaked = 0;
+        int split = 0;
+        for (Player player : players){
+            Integer id = playerIDs.get(player.uuid);
+            List<int[]> rows = id == null ? new ArrayList<>() : sessions.getOrDefault(id, new ArrayList<>());
+            int expected = player.node < 0 ? -1 : servers.get(nodes.get(player.node).getServerName());
+
+            int open = 0;
+            boolean found = false;
+            for (int[] row : rows){
+                if (row[1] != 0){
+                    stuck++;
+                } else {
+                    open++;
+                    if (row[0] == expected){
+                        found = true;
+                    } else {
+                        leaked++;
+                    }
+                }
+            }
+
+            if (expected >= 0 && !found){
+                missing++;
+            }
+            if (open > 1){
+                split++;
+            }
+        }
+
+        System.out.println("sessions stuck closing " + stuck + ", missing " + missing + ", leaked " + leaked + ", open on several servers " + split);
+
+        long total = 0;
+        for (Map.Entry<String, Long> entry : queryCounts().entrySet()){
+            long count = entry.getValue() - queriesBefore.getOrDefault(entry.getKey(), 0L);
+            if (count > 0){
+                System.out.println("  query " + entry.getKey() + " " + count);
+                total += count;
+            }
+        }
+        System.out.println("queries " + total);
+    }
+
+    private static void print(String name, LatencyHistogram histogram){
+        if (histogram.getCount() == 0){
+            return;
+        }
+
+        System.out.println(String.format(Locale.ROOT, "%s n=%d p50=%.2fms p95=%.2fms p99=%.2fms max=%.2fms", name, histogram.getCount(),
+                histogram.percentile(0.5) / 1_000_000D, histogram.percentile(0.95) / 1_000_000D,
+                histogram.percentile(0.99) / 1_000_000D, histogram.getMax() / 1_000_000D));
+    }
+
+    private static int option(Map<String, String> options, String name, int value){
+        String option = options.get(name);
+        return option == null ? value : Integer.parseInt(option);
+    }
+
+    private static class Player {
+        private final UUID uuid;
+        private final String name;
+        private final ReentrantLock lock;
+
+        private volatile int node;
+
+        private Player(UUID uuid, String name){
+            this.uuid = uuid;
+            this.name = name;
+            this.lock = new ReentrantLock();
+            this.node = -1;
+        }
+    }
+}
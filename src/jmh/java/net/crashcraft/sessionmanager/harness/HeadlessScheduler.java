@@ -0,0 +1,270 @@
+package net.crashcraft.sessionmanager.harness;
+
+import org.bukkit.plugin.IllegalPluginAccessException;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Bukkit scheduler backed by a single main thread and a cached async pool. Delays are in ticks of 50ms like a real
+ * server, tasks without a delay run as soon as the thread is free instead of waiting for the next tick.
+ */
+public class HeadlessScheduler {
+    static final long TICK_MILLIS = 50;
+
+    private final Logger logger;
+    private final ScheduledExecutorService main;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService async;
+    private final Map<Integer, Task> tasks;
+    private final AtomicInteger ids;
+    private final BukkitScheduler scheduler;
+
+    private volatile Thread mainThread;
+
+    HeadlessScheduler(String name, Logger logger){
+        this.logger = logger;
+        this.tasks = new ConcurrentHashMap<>();
+        this.ids = new AtomicInteger();
+
+        this.main = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + " Main");
+            thread.setDaemon(true);
+            mainThread = thread;
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, name + " Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.async = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, name + " Async");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.scheduler = (BukkitScheduler) Proxy.newProxyInstance(BukkitScheduler.class.getClassLoader(), new Class[]{BukkitScheduler.class}, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "runTask":
+                    return schedule(args, 0, -1, true);
+                case "runTaskAsynchronously":
+                    return schedule(args, 0, -1, false);
+                case "runTaskLater":
+                    return schedule(args, (long) args[2], -1, true);
+                case "runTaskLaterAsynchronously":
+                    return schedule(args, (long) args[2], -1, false);
+                case "runTaskTimer":
+                    return schedule(args, (long) args[2], (long) args[3], true);
+                case "runTaskTimerAsynchronously":
+                    return schedule(args, (long) args[2], (long) args[3], false);
+                case "scheduleSyncDelayedTask":
+                    return id(schedule(args, args.length > 2 ? (long) args[2] : 0, -1, true));
+                case "scheduleSyncRepeatingTask":
+                    return id(schedule(args, (long) args[2], (long) args[3], true));
+                case "scheduleAsyncDelayedTask":
+                    return id(schedule(args, args.length > 2 ? (long) args[2] : 0, -1, false));
+                case "scheduleAsyncRepeatingTask":
+                    return id(schedule(args, (long) args[2], (long) args[3], false));
+                case "callSyncMethod":
+                    return callSync((Callable<?>) args[1]);
+                case "cancelTask":
+                    cancel((int) args[0]);
+                    return null;
+                case "cancelTasks":
+                    for (Task task : tasks.values()){
+                        if (task.owner == args[0]){
+                            task.cancel();
+                        }
+                    }
+                    return null;
+                case "isCurrentlyRunning":
+                case "isQueued":
+                    return tasks.containsKey((int) args[0]);
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return name + " Scheduler";
+                default:
+                    throw new UnsupportedOperationException("The headless scheduler does not support " + method.getName());
+            }
+        });
+    }
+
+    BukkitScheduler getScheduler(){
+        return scheduler;
+    }
+
+    boolean isMainThread(){
+        return Thread.currentThread() == mainThread;
+    }
+
+    /*
+     * Runs on the main thread and waits for it, for driving plugin lifecycle calls the way the server would
+     */
+    public <T> T callOnMain(Callable<T> callable) throws Exception {
+        if (isMainThread()){
+            return callable.call();
+        }
+        return main.submit(callable).get();
+    }
+
+    /*
+     * Blocks until every task already queued on the main thread has run
+     */
+    public void drainMain() throws Exception {
+        callOnMain(() -> null);
+    }
+
+    public int getPendingTasks(){
+        return tasks.size();
+    }
+
+    void shutdown(){
+        for (Task task : tasks.values()){
+            task.cancel();
+        }
+
+        main.shutdownNow();
+        timer.shutdownNow();
+        async.shutdownNow();
+    }
+
+    private <T> Future<T> callSync(Callable<T> callable){
+        CompletableFuture<T> future = new CompletableFuture<>();
+        main.execute(() -> {
+            try {
+                future.complete(callable.call());
+            } catch (Throwable t){
+                future.completeExceptionally(t);
+            }
+        });
+        return future;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Task schedule(Object[] args, long delay, long period, boolean sync){
+        Plugin owner = (Plugin) args[0];
+        if (!owner.isEnabled()){ // Like CraftScheduler, which onDisable runs into as the plugin is turned off before it is called
+            throw new IllegalPluginAccessException("Plugin attempted to register task while disabled");
+        }
+
+        Task task = new Task(ids.incrementAndGet(), owner, sync, period > 0);
+
+        Object body = args[1];
+        task.body = body instanceof Runnable ? (Runnable) body : () -> ((Consumer<BukkitTask>) body).accept(task);
+
+        tasks.put(task.id, task);
+
+        ScheduledExecutorService executor = sync ? main : timer;
+        Runnable run = sync ? task : () -> async.execute(task);
+
+        long delayMillis = Math.max(0, delay) * TICK_MILLIS;
+        if (period > 0){
+            task.future = executor.scheduleAtFixedRate(run, delayMillis, period * TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } else if (delayMillis == 0 && sync){
+            main.execute(task);
+        } else if (delayMillis == 0){
+            async.execute(task);
+        } else {
+            task.future = executor.schedule(run, delayMillis, TimeUnit.MILLISECONDS);
+        }
+
+        return task;
+    }
+
+    private static int id(Task task){
+        return task.id;
+    }
+
+    private void cancel(int id){
+        Task task = tasks.get(id);
+        if (task != null){
+            task.cancel();
+        }
+    }
+
+    private class Task implements BukkitTask, Runnable {
+        private final int id;
+        private final Plugin owner;
+        private final boolean sync;
+        private final boolean repeating;
+
+        private volatile Runnable body;
+        private volatile ScheduledFuture<?> future;
+        private volatile boolean cancelled;
+
+        private Task(int id, Plugin owner, boolean sync, boolean repeating){
+            this.id = id;
+            this.owner = owner;
+            this.sync = sync;
+            this.repeating = repeating;
+        }
+
+        @Override
+        public void run(){
+            if (cancelled){
+                return;
+            }
+
+            try {
+                body.run();
+            } catch (Throwable t){ // Bukkit logs and carries on, a repeating task keeps running
+                logger.log(Level.WARNING, "Task #" + id + " for " + owner.getName() + " generated an exception", t);
+            } finally {
+                if (!repeating){
+                    tasks.remove(id);
+                }
+            }
+        }
+
+        @Override
+        public int getTaskId(){
+            return id;
+        }
+
+        @Override
+        public Plugin getOwner(){
+            return owner;
+        }
+
+        @Override
+        public boolean isSync(){
+            return sync;
+        }
+
+        @Override
+        public boolean isCancelled(){
+            return cancelled;
+        }
+
+        @Override
+        public void cancel(){
+            cancelled = true;
+            tasks.remove(id);
+
+            ScheduledFuture<?> future = this.future;
+            if (future != null){
+                future.cancel(false);
+            }
+        }
+    }
+}
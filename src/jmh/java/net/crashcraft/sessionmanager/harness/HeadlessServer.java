@@ -0,0 +1,153 @@
+package net.crashcraft.sessionmanager.harness;
+
+import org.bukkit.Bukkit;
+import org.bukkit.OfflinePlayer;
+import org.bukkit.Server;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.plugin.messaging.Messenger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/*
+ * Just enough of a Bukkit server to enable SessionManager and drive its events with no real server. Events are not
+ * dispatched, callers invoke the listeners themselves, and there are never any players online.
+ *
+ * Bukkit only holds one server so it is installed once and shared by everything in the class loader.
+ */
+public class HeadlessServer {
+    private static HeadlessServer instance;
+
+    private final Logger logger;
+    private final HeadlessScheduler scheduler;
+    private final PluginManager pluginManager;
+    private final Messenger messenger;
+    private final Server server;
+
+    private volatile boolean shutdownRequested;
+
+    private HeadlessServer(String name){
+        this.logger = Logger.getLogger(name);
+        this.scheduler = new HeadlessScheduler(name, logger);
+        this.pluginManager = proxy(PluginManager.class, (proxy, method, args) -> defaultValue(method, proxy, args));
+        this.messenger = proxy(Messenger.class, (proxy, method, args) -> defaultValue(method, proxy, args)); // No players to carry plugin messages
+        this.server = proxy(Server.class, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "getScheduler":
+                    return scheduler.getScheduler();
+                case "getPluginManager":
+                    return pluginManager;
+                case "getMessenger":
+                    return messenger;
+                case "getLogger":
+                    return logger;
+                case "isPrimaryThread":
+                    return scheduler.isMainThread();
+                case "getName":
+                    return name;
+                case "getVersion":
+                case "getBukkitVersion":
+                    return "headless";
+                case "getOfflinePlayer":
+                    return args[0] instanceof UUID ? offlinePlayer((UUID) args[0]) : null;
+                case "shutdown":
+                    shutdownRequested = true;
+                    logger.severe("SessionManager requested a server shutdown");
+                    return null;
+                default:
+                    return defaultValue(method, proxy, args);
+            }
+        });
+    }
+
+    public static synchronized HeadlessServer install(String name){
+        if (instance == null){
+            instance = new HeadlessServer(name);
+            Bukkit.setServer(instance.server);
+        }
+        return instance;
+    }
+
+    public Server getServer(){
+        return server;
+    }
+
+    public HeadlessScheduler getScheduler(){
+        return scheduler;
+    }
+
+    public Logger getLogger(){
+        return logger;
+    }
+
+    public boolean isShutdownRequested(){
+        return shutdownRequested;
+    }
+
+    public void shutdown(){
+        scheduler.shutdown();
+    }
+
+    private static OfflinePlayer offlinePlayer(UUID uuid){
+        return proxy(OfflinePlayer.class, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "getUniqueId":
+                    return uuid;
+                case "isOnline":
+                    return false;
+                default:
+                    return defaultValue(method, proxy, args);
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler){
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, handler);
+    }
+
+    private static Object defaultValue(Method method, Object proxy, Object[] args){
+        switch (method.getName()){
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return "Headless " + method.getDeclaringClass().getSimpleName();
+        }
+
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class){
+            return false;
+        } else if (type == int.class){
+            return 0;
+        } else if (type == long.class){
+            return 0L;
+        } else if (type == double.class){
+            return 0D;
+        } else if (type == float.class){
+            return 0F;
+        } else if (type == short.class){
+            return (short) 0;
+        } else if (type == byte.class){
+            return (byte) 0;
+        } else if (type == char.class){
+            return (char) 0;
+        } else if (type == List.class || type == Collection.class){
+            return Collections.emptyList();
+        } else if (type == Set.class){
+            return Collections.emptySet();
+        } else if (type == Map.class){
+            return Collections.emptyMap();
+        }
+        return null;
+    }
+}
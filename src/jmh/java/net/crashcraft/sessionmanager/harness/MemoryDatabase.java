@@ -0,0 +1,67 @@
+package net.crashcraft.sessionmanager.harness;
+
+import co.aikar.idb.Database;
+import co.aikar.idb.DatabaseOptions;
+import co.aikar.idb.PooledDatabaseOptions;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/*
+ * H2 in MySQL mode standing in for the network database. Databases with the same name share their tables for the life
+ * of the JVM, even across node class loaders as H2 is always shared. The stored procedures are Java aliases in MemoryProcedures doing the same work as the MySQL ones.
+ */
+public final class MemoryDatabase {
+    private static final String[] SCHEMA = {
+            "CREATE TABLE IF NOT EXISTS servers (id INT NOT NULL AUTO_INCREMENT PRIMARY KEY, `name` VARCHAR(64) NOT NULL UNIQUE);",
+            "CREATE TABLE IF NOT EXISTS players (id INT NOT NULL AUTO_INCREMENT PRIMARY KEY, username VARCHAR(16) NOT NULL, uuid VARBINARY(36) NOT NULL UNIQUE, fence BIGINT NOT NULL DEFAULT 0);",
+            "CREATE TABLE IF NOT EXISTS sessions (player_id INT NOT NULL, server_id INT NOT NULL, isclosing TINYINT NOT NULL DEFAULT 0, lease_until TIMESTAMP NULL DEFAULT NULL, fence BIGINT NOT NULL DEFAULT 0, PRIMARY KEY (player_id, server_id));",
+            "CREATE ALIAS IF NOT EXISTS session_acquire_v2 FOR \"" + MemoryProcedures.class.getName() + ".acquire\";",
+            "CREATE ALIAS IF NOT EXISTS reset_ai FOR \"" + MemoryProcedures.class.getName() + ".resetAutoIncrement\";"
+    };
+
+    private MemoryDatabase(){
+    }
+
+    public static String url(String name){
+        return "jdbc:h2:mem:" + name + ";MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    }
+
+    /*
+     * Opens a pool for one lane on the named database, creating the schema and registering the server if they are missing
+     */
+    public static Database open(String name, String serverName, String lane, int connections) throws SQLException {
+        DatabaseOptions options = DatabaseOptions.builder()
+                .dsn(url(name).substring("jdbc:".length()))
+                .driverClassName("org.h2.Driver")
+                .dataSourceClassName("org.h2.jdbcx.JdbcDataSource")
+                .user("sa")
+                .pass("")
+                .poolName("SessionManager-" + serverName + " " + lane)
+                .build();
+
+        Database database = PooledDatabaseOptions.builder()
+                .options(options)
+                .maxConnections(connections)
+                .createHikariDatabase();
+
+        try (Connection connection = database.getConnection()){
+            synchronized (MemoryDatabase.class){ // Nodes sharing a database start up together
+                try (Statement statement = connection.createStatement()){
+                    for (String sql : SCHEMA){
+                        statement.execute(sql);
+                    }
+                }
+            }
+
+            try (PreparedStatement statement = connection.prepareStatement("MERGE INTO servers (`name`) KEY (`name`) VALUES (?);")){
+                statement.setString(1, serverName);
+                statement.executeUpdate();
+            }
+        }
+
+        return database;
+    }
+}
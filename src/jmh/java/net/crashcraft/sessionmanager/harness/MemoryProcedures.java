@@ -0,0 +1,89 @@
+package net.crashcraft.sessionmanager.harness;
+
+import org.h2.tools.SimpleResultSet;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+
+/*
+ * H2 aliases for the stored procedures SessionManager calls, kept step for step with the MySQL versions
+ */
+public final class MemoryProcedures {
+    private MemoryProcedures(){
+    }
+
+    public static ResultSet acquire(Connection connection, String uuid, String username, int server, int lease) throws SQLException {
+        SimpleResultSet result = new SimpleResultSet();
+        result.addColumn("player_id", Types.INTEGER, 10, 0);
+        result.addColumn("is_closing", Types.INTEGER, 10, 0);
+        result.addColumn("is_open", Types.INTEGER, 10, 0);
+        result.addColumn("is_created", Types.INTEGER, 10, 0);
+        result.addColumn("fence", Types.BIGINT, 19, 0);
+        result.addColumn("taken_over", Types.INTEGER, 10, 0);
+
+        if (connection.getMetaData().getURL().equals("jdbc:columnlist:connection")){ // H2 asking for the columns only
+            return result;
+        }
+
+        byte[] key = uuid.getBytes(StandardCharsets.UTF_8);
+
+        Integer id = first(connection, "SELECT id FROM players WHERE uuid = ?;", key);
+        if (id == null){
+            update(connection, "INSERT IGNORE INTO players (username, uuid) VALUES (?, ?);", username, key);
+            id = first(connection, "SELECT id FROM players WHERE uuid = ?;", key);
+        } else {
+            update(connection, "UPDATE players SET username = ? WHERE id = ? AND username <> ?;", username, id, username);
+        }
+
+        int taken = update(connection, "DELETE FROM sessions WHERE player_id = ? AND server_id != ? AND lease_until < NOW();", id, server);
+        update(connection, "UPDATE sessions SET isclosing = 1 WHERE server_id != ? AND player_id = ?;", server, id);
+        int closing = first(connection, "SELECT COUNT(*) FROM sessions WHERE player_id = ? AND isclosing = 1;", id);
+        int open = first(connection, "SELECT COUNT(*) FROM sessions WHERE player_id = ? AND server_id = ? AND isclosing = 0;", id, server);
+
+        int created = 0;
+        if (closing == 0 && open == 0){
+            update(connection, "UPDATE players SET fence = fence + 1 WHERE id = ?;", id);
+            created = update(connection, "INSERT IGNORE INTO sessions (player_id, server_id, isclosing, lease_until, fence) SELECT id, ?, 0, TIMESTAMPADD(SECOND, ?, NOW()), fence FROM players WHERE id = ?;", server, lease, id);
+        }
+
+        long fence = 0;
+        try (PreparedStatement statement = prepare(connection, "SELECT fence FROM sessions WHERE player_id = ? AND server_id = ?;", id, server);
+             ResultSet row = statement.executeQuery()){
+            if (row.next()){
+                fence = row.getLong(1);
+            }
+        }
+
+        result.addRow(id, closing, open, created, fence, taken);
+        return result;
+    }
+
+    public static void resetAutoIncrement(String table){
+        // H2 does not burn ids on ignored inserts, nothing to reset
+    }
+
+    private static Integer first(Connection connection, String sql, Object... params) throws SQLException {
+        try (PreparedStatement statement = prepare(connection, sql, params);
+             ResultSet result = statement.executeQuery()){
+            return result.next() ? result.getInt(1) : null;
+        }
+    }
+
+    private static int update(Connection connection, String sql, Object... params) throws SQLException {
+        try (PreparedStatement statement = prepare(connection, sql, params)){
+            return statement.executeUpdate();
+        }
+    }
+
+    private static PreparedStatement prepare(Connection connection, String sql, Object... params) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        for (int x = 0; x < params.length; x++){
+            statement.setObject(x + 1, params[x]);
+        }
+        return statement;
+    }
+}
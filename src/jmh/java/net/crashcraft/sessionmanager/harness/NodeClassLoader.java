@@ -0,0 +1,75 @@
+package net.crashcraft.sessionmanager.harness;
+
+import java.io.File;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Child first class loader giving a simulated node its own copy of Bukkit, idb, TaskChain and the plugin, all of which
+ * keep their state in statics. The JDK, H2 and the simulator bridge stay shared so nodes meet in the same database.
+ */
+final class NodeClassLoader extends URLClassLoader {
+    private static final String[] SHARED = {
+            "java.", "javax.", "sun.", "jdk.", "com.sun.", "org.w3c.", "org.xml.", "org.h2.",
+            SimulatedNode.class.getName(), MemoryProcedures.class.getName()
+    };
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    NodeClassLoader(ClassLoader parent){
+        super(classpath(parent), parent);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (isShared(name)){
+            return super.loadClass(name, resolve);
+        }
+
+        synchronized (getClassLoadingLock(name)){
+            Class<?> type = findLoadedClass(name);
+            if (type == null){
+                try {
+                    type = findClass(name);
+                } catch (ClassNotFoundException e){
+                    return super.loadClass(name, resolve);
+                }
+            }
+
+            if (resolve){
+                resolveClass(type);
+            }
+            return type;
+        }
+    }
+
+    private static boolean isShared(String name){
+        for (String prefix : SHARED){
+            if (name.startsWith(prefix)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static URL[] classpath(ClassLoader parent){
+        if (parent instanceof URLClassLoader){ // exec:java runs us in its own loader rather than on the system class path
+            return ((URLClassLoader) parent).getURLs();
+        }
+
+        List<URL> urls = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)){
+            try {
+                urls.add(new File(entry).toURI().toURL());
+            } catch (MalformedURLException e){
+                throw new IllegalStateException("Invalid class path entry " + entry, e);
+            }
+        }
+        return urls.toArray(new URL[0]);
+    }
+}
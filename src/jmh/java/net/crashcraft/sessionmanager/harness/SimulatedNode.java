@@ -0,0 +1,39 @@
+package net.crashcraft.sessionmanager.harness;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * A SessionManager server as the cluster simulator sees it. This is loaded by the simulators class loader so it can
+ * talk to nodes living in their own class loaders, keep it to JDK types.
+ */
+public interface SimulatedNode {
+    String getServerName();
+
+    /*
+     * Pre-login on this server, blocks through any handoff and returns whether the player was let in
+     */
+    boolean join(UUID uuid, String name);
+
+    /*
+     * The player left this server, returns once their session is closed
+     */
+    void quit(UUID uuid);
+
+    /*
+     * Registers a dependency that takes the given time to load and save each player, before anyone joins
+     */
+    void addDependency(String name, long createMillis, long closeMillis);
+
+    /*
+     * Registers a SessionCache whose entries have a SAVE, LOAD and UNLOAD hook on each thread, before anyone joins
+     */
+    void addCache(String name);
+
+    Map<String, Long> getQueryCounts();
+
+    List<String> getMetricsSummary();
+
+    void stop() throws Exception;
+}
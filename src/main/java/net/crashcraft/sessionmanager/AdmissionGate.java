@@ -0,0 +1,53 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Bounds how many pre-logins work against the database at once. Waiters are let in in arrival order and give up after
+ * the max wait, so a login storm becomes a queue instead of an exhausted connection pool where every login times out.
+ */
+class AdmissionGate {
+    private final int capacity;
+    private final Semaphore permits;
+    private final long maxWait;
+    private final LatencyHistogram waitTime;
+    private final LongAdder rejected;
+
+    AdmissionGate(int capacity, long maxWait, SessionMetrics metrics){
+        this.capacity = capacity;
+        this.permits = new Semaphore(capacity, true);
+        this.maxWait = maxWait;
+        this.waitTime = metrics.histogram("sessionmanager_admission_wait_seconds");
+        this.rejected = metrics.counter("sessionmanager_admission_rejected_total");
+
+        metrics.gauge("sessionmanager_admission_queue_depth", permits::getQueueLength);
+        metrics.gauge("sessionmanager_admission_active", this::getActive);
+    }
+
+    /*
+     * Returns false if the wait ran out, the caller must leave() after every successful enter()
+     */
+    boolean enter() throws InterruptedException {
+        long start = System.nanoTime();
+        boolean entered = permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS); // Timed tryAcquire keeps the fair ordering, the untimed one barges
+        waitTime.recordSince(start);
+
+        if (!entered){
+            rejected.increment();
+        }
+        return entered;
+    }
+
+    void leave(){
+        permits.release();
+    }
+
+    int getActive(){
+        return capacity - permits.availablePermits();
+    }
+}
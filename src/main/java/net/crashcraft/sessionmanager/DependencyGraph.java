@@ -0,0 +1,339 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Runs session dependencies as a graph. A dependency registered after others only starts creating once those are done and
+ * closes before them, everything else runs in parallel. A dependency that fails or runs past its deadline is logged and
+ * treated as done so it can never hold the ones after it up forever. A close only completes once every dependency really
+ * finished though, one still saving past its deadline keeps the session closing instead of releasing it under the save.
+ */
+class DependencyGraph {
+    private final Logger logger;
+    private final SessionMetrics metrics;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Map<String, Node> nodes;
+
+    private volatile long defaultTimeout;
+    private volatile Plan plan;
+
+    DependencyGraph(Logger logger, SessionMetrics metrics){
+        this.logger = logger;
+        this.metrics = metrics;
+        this.nodes = new LinkedHashMap<>();
+        this.plan = new Plan(new Node[0], new int[0][], new int[0][]);
+
+        this.executor = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "SessionManager Dependency");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SessionManager Dependency Timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    synchronized void register(SessionDependency dependency, String name, long timeout, String... after){
+        if (nodes.containsKey(name)){
+            logger.warning("Session dependency [" + name + "] was registered twice, replacing the old registration");
+        }
+
+        nodes.put(name, new Node(dependency, name, timeout, after,
+                metrics.histogram("sessionmanager_dependency_seconds", "dependency", name, "phase", "create"),
+                metrics.histogram("sessionmanager_dependency_seconds", "dependency", name, "phase", "close")));
+        plan = buildPlan();
+    }
+
+    void setDefaultTimeout(long defaultTimeout) {
+        this.defaultTimeout = defaultTimeout;
+    }
+
+    void shutdown(){
+        executor.shutdown();
+        timer.shutdownNow();
+    }
+
+    CompletableFuture<Void> create(UUID uuid){
+        Plan plan = this.plan;
+        CompletableFuture<?>[] futures = new CompletableFuture[plan.order.length];
+
+        for (int x = 0; x < plan.order.length; x++){ // Topological order, parents are always started first
+            Node node = plan.order[x];
+
+            futures[x] = guard(after(futures, plan.parents[x])
+                    .thenRunAsync(() -> {
+                        long start = System.nanoTime();
+                        node.dependency.onSessionCreate(uuid);
+                        node.createTime.recordSince(start);
+                    }, executor), node, uuid, "create");
+        }
+
+        return CompletableFuture.allOf(futures);
+    }
+
+    /*
+     * Every dependency at once, nothing waits on an intent so there is no ordering or deadline
+     */
+    void intent(UUID uuid){
+        for (Node node : plan.order){
+            executor.execute(() -> {
+                try {
+                    node.dependency.onSessionIntent(uuid);
+                } catch (Exception e){
+                    logger.log(Level.SEVERE, "Session dependency [" + node.name + "] failed to prefetch for " + uuid, e);
+                }
+            });
+        }
+    }
+
+    /*
+     * Every dependency at once, the session is no longer ours so there is nothing to order. Completes once every
+     * dependency dropped what it held, failures included.
+     */
+    CompletableFuture<Void> fence(UUID uuid){
+        Plan plan = this.plan;
+        CompletableFuture<?>[] futures = new CompletableFuture[plan.order.length];
+
+        for (int x = 0; x < plan.order.length; x++){
+            Node node = plan.order[x];
+
+            futures[x] = CompletableFuture.completedFuture(null)
+                    .thenComposeAsync(ignored -> {
+                        CompletableFuture<Void> future = node.dependency.onSessionFencedWithFuture(uuid);
+                        return future == null ? CompletableFuture.<Void>completedFuture(null) : future;
+                    }, executor)
+                    .handle((ignored, e) -> {
+                        if (e != null){
+                            logger.log(Level.SEVERE, "Session dependency [" + node.name + "] failed to drop the fenced session of " + uuid, e);
+                        }
+                        return null;
+                    });
+        }
+
+        return CompletableFuture.allOf(futures);
+    }
+
+    CompletableFuture<Void> close(UUID uuid){
+        Plan plan = this.plan;
+        CompletableFuture<?>[] futures = new CompletableFuture[plan.order.length];
+        CompletableFuture<?>[] closed = new CompletableFuture[plan.order.length];
+
+        for (int x = plan.order.length - 1; x >= 0; x--){ // Reverse order, a dependency closes before the ones it was created after
+            Node node = plan.order[x];
+
+            CompletableFuture<Void> closing = after(futures, plan.children[x])
+                    .thenComposeAsync(ignored -> {
+                        long start = System.nanoTime();
+                        node.dependency.onSessionClose(uuid);
+                        CompletableFuture<Void> future = node.dependency.onSessionCloseWithFuture(uuid);
+                        if (future == null){
+                            node.closeTime.recordSince(start);
+                            return CompletableFuture.<Void>completedFuture(null);
+                        }
+                        return future.whenComplete((done, e) -> node.closeTime.recordSince(start));
+                    }, executor);
+
+            futures[x] = guard(closing, node, uuid, "close");
+            closed[x] = closing.handle((ignored, e) -> null); // Failures are logged by the guard
+        }
+
+        return CompletableFuture.allOf(closed);
+    }
+
+    /*
+     * Closes every dependency in close order on the calling thread for the shutdown flush, the flush deadline replaces the
+     * per dependency ones. Returns whether every dependency closed without failing, only then is the players data written.
+     */
+    boolean closeForShutdown(UUID uuid) throws InterruptedException{
+        Plan plan = this.plan;
+        boolean written = true;
+
+        for (int x = plan.order.length - 1; x >= 0; x--){
+            Node node = plan.order[x];
+            try {
+                long start = System.nanoTime();
+                CompletableFuture<Void> future = node.dependency.onSessionShutdown(uuid);
+                if (future != null){
+                    future.get();
+                }
+                node.closeTime.recordSince(start);
+            } catch (ExecutionException e){
+                logger.log(Level.SEVERE, "Session dependency [" + node.name + "] failed to close for " + uuid + " during shutdown", e.getCause());
+                written = false;
+            } catch (RuntimeException e){
+                logger.log(Level.SEVERE, "Session dependency [" + node.name + "] failed to close for " + uuid + " during shutdown", e);
+                written = false;
+            }
+        }
+
+        return written;
+    }
+
+    private static CompletableFuture<Void> after(CompletableFuture<?>[] futures, int[] indexes){
+        if (indexes.length == 0){
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<?>[] waiting = new CompletableFuture[indexes.length];
+        for (int x = 0; x < indexes.length; x++){
+            waiting[x] = futures[indexes[x]];
+        }
+        return CompletableFuture.allOf(waiting);
+    }
+
+    private CompletableFuture<Void> guard(CompletableFuture<Void> future, Node node, UUID uuid, String phase){
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        long timeout = node.timeout >= 0 ? node.timeout : defaultTimeout;
+
+        ScheduledFuture<?> deadline = timeout <= 0 ? null : timer.schedule(() -> {
+            if (result.complete(null)){
+                logger.warning("Session dependency [" + node.name + "] did not finish " + phase + " for " + uuid + " within " + timeout + "ms, continuing without it" +
+                        (phase.equals("close") ? ", the session stays closing until it does" : ""));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+
+        future.whenComplete((ignored, e) -> {
+            if (deadline != null){
+                deadline.cancel(false);
+            }
+
+            if (e != null){
+                logger.log(Level.SEVERE, "Session dependency [" + node.name + "] failed to " + phase + " session for " + uuid, e);
+            }
+
+            if (!result.complete(null)){
+                logger.info("Session dependency [" + node.name + "] finished " + phase + " for " + uuid + " after its deadline");
+            }
+        });
+
+        return result;
+    }
+
+    private Plan buildPlan(){
+        List<Node> order = new ArrayList<>(nodes.size());
+        Set<Node> visited = new HashSet<>();
+        Set<Node> visiting = new HashSet<>();
+
+        for (Node node : nodes.values()){
+            visit(node, order, visited, visiting);
+        }
+
+        Map<Node, Integer> index = new HashMap<>();
+        for (int x = 0; x < order.size(); x++){
+            index.put(order.get(x), x);
+        }
+
+        int[][] parents = new int[order.size()][];
+        List<List<Integer>> children = new ArrayList<>();
+        for (int x = 0; x < order.size(); x++){
+            children.add(new ArrayList<>());
+        }
+
+        for (int x = 0; x < order.size(); x++){
+            List<Integer> resolved = new ArrayList<>();
+            for (String name : order.get(x).after){
+                Node parent = nodes.get(name);
+                Integer parentIndex = parent == null ? null : index.get(parent);
+
+                if (parentIndex != null && parentIndex < x){ // Edges that would point backwards came from a cycle and were dropped
+                    resolved.add(parentIndex);
+                    children.get(parentIndex).add(x);
+                }
+            }
+            parents[x] = toArray(resolved);
+        }
+
+        int[][] childArray = new int[order.size()][];
+        for (int x = 0; x < order.size(); x++){
+            childArray[x] = toArray(children.get(x));
+        }
+
+        return new Plan(order.toArray(new Node[0]), parents, childArray);
+    }
+
+    private void visit(Node node, List<Node> order, Set<Node> visited, Set<Node> visiting){
+        if (visited.contains(node)){
+            return;
+        }
+
+        visiting.add(node);
+        for (String name : node.after){
+            Node parent = nodes.get(name);
+            if (parent == null){
+                continue; // Not registered (yet), nothing to wait on
+            }
+
+            if (visiting.contains(parent)){
+                logger.severe("Session dependency [" + node.name + "] has a cyclic ordering on [" + name + "], ignoring that constraint");
+                continue;
+            }
+
+            visit(parent, order, visited, visiting);
+        }
+        visiting.remove(node);
+
+        visited.add(node);
+        order.add(node);
+    }
+
+    private static int[] toArray(List<Integer> list){
+        int[] array = new int[list.size()];
+        for (int x = 0; x < array.length; x++){
+            array[x] = list.get(x);
+        }
+        return array;
+    }
+
+    private static class Node {
+        private final SessionDependency dependency;
+        private final String name;
+        private final long timeout;
+        private final String[] after;
+        private final LatencyHistogram createTime;
+        private final LatencyHistogram closeTime;
+
+        private Node(SessionDependency dependency, String name, long timeout, String[] after, LatencyHistogram createTime, LatencyHistogram closeTime){
+            this.dependency = dependency;
+            this.name = name;
+            this.timeout = timeout;
+            this.after = after;
+            this.createTime = createTime;
+            this.closeTime = closeTime;
+        }
+    }
+
+    private static class Plan {
+        private final Node[] order;
+        private final int[][] parents;
+        private final int[][] children;
+
+        private Plan(Node[] order, int[][] parents, int[][] children){
+            this.order = order;
+            this.parents = parents;
+            this.children = children;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package net.crashcraft.sessionmanager;
+
+/*
+ * Result of the session_acquire procedure, the player id and the state of their sessions after existing ones were marked closing
+ */
+class SessionAcquire {
+    private final int player_id;
+    private final boolean closing;
+    private final boolean open;
+    private final boolean created;
+    private final long fence;
+
+    SessionAcquire(int player_id, boolean closing, boolean open, boolean created, long fence){
+        this.player_id = player_id;
+        this.closing = closing;
+        this.open = open;
+        this.created = created;
+        this.fence = fence;
+    }
+
+    int getPlayerID() {
+        return player_id;
+    }
+
+    boolean isClosing() { // A session is closing somewhere and has to be released before this one can be created
+        return closing;
+    }
+
+    boolean isOpen() { // Session was already open on this server
+        return open;
+    }
+
+    boolean isCreated() {
+        return created;
+    }
+
+    long getFence() { // Of the session here when it was created or already open
+        return fence;
+    }
+}
@@ -1,6 +1,7 @@
 package net.crashcraft.sessionmanager;
 
-import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.config.GlobalConfig;
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.event.EventHandler;
@@ -10,61 +11,148 @@ import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerQuitEvent;
 
 import java.sql.SQLException;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 
 public class SessionEvents implements Listener {
     private SessionManager manager;
 
+    private final LatencyHistogram preLoginTime;
+    private final LatencyHistogram handoffWaitTime;
+    private final LongAdder coalesced;
+    private final Map<UUID, Attempt> preLogins;
+    private final Set<AsyncPlayerPreLoginEvent> untouched; // Refused before touching any session, nothing to clean up
+
     public SessionEvents(SessionManager manager){
         this.manager = manager;
+
+        this.preLoginTime = manager.getMetrics().histogram("sessionmanager_prelogin_seconds");
+        this.handoffWaitTime = manager.getMetrics().histogram("sessionmanager_handoff_wait_seconds");
+        this.coalesced = manager.getMetrics().counter("sessionmanager_prelogin_coalesced_total");
+        this.preLogins = new ConcurrentHashMap<>();
+        this.untouched = ConcurrentHashMap.newKeySet();
     }
 
     @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
     public void onAsyncPlayerPreLoginEvent(AsyncPlayerPreLoginEvent event){
+        Attempt attempt = new Attempt(event);
+        Attempt running = preLogins.putIfAbsent(event.getUniqueId(), attempt);
+
+        if (running != null){ // Same player connecting twice, take the result of the attempt in progress instead of acquiring again
+            coalesced.increment();
+            awaitAttempt(event, running);
+            return;
+        }
+
+        preLogin(event); // Finished from the monitor handler, once every other plugin had its say
+    }
+
+    /*
+     * Copies the final result of the first attempt. The wait never touches the database so it takes no admission permit,
+     * it is bounded by the handoff timeout instead and a first attempt that never finishes refuses the second one.
+     */
+    private void awaitAttempt(AsyncPlayerPreLoginEvent event, Attempt running){
+        untouched.add(event); // The first attempt cleans up after itself
+        try {
+            AsyncPlayerPreLoginEvent first = running.result.get(GlobalConfig.handoff_timeout, TimeUnit.MILLISECONDS);
+            if (first.getLoginResult() != AsyncPlayerPreLoginEvent.Result.ALLOWED){
+                event.disallow(first.getLoginResult(), first.getKickMessage());
+            } else {
+                untouched.remove(event);
+            }
+        } catch (TimeoutException e){
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, "Unable to start player session, a previous login is still in progress");
+        } catch (InterruptedException|ExecutionException e){
+            event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, "Unable to start player session, a previous login failed");
+        }
+    }
+
+    private void preLogin(AsyncPlayerPreLoginEvent event){
         /*
          * Check if session exists -- if so stall, make all existing sessions closing
          * Create new session
          */
+        long start = System.nanoTime();
+        AdmissionGate admission = manager.getAdmission();
+        boolean admitted = false;
         try {
-            //Create the user for the network or update his username
-            manager.createUser(event.getUniqueId(), event.getName());
+            if (!admission.enter()){
+                untouched.add(event);
+                event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, GlobalConfig.admission_kick_message);
+                return;
+            }
+            admitted = true;
 
-            int player_id = manager.getPlayerID(event.getUniqueId());
+            //Create or update the user, close existing sessions and create ours if nothing is closing - one round trip
+            SessionAcquire acquire = manager.acquireSession(event.getUniqueId(), event.getName());
+            int player_id = acquire.getPlayerID();
 
             if (player_id == 0){
                 event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, "Unable to start player session, no id found");
                 return;
             }
 
-            manager.markSessionsClosing(manager.getServerID(), player_id);   //Close existing sessions - should fire sessionDependencies
+            if (acquire.isClosing()){
+                manager.getSweeper().notifyActivity();
 
-            while (manager.hasClosingSessionAnywhere(player_id)){
-                Thread.sleep(100);  // This function runs in its own connection thread per player (if Aikar is right), so we sleep until no sessions are closing
-            }
+                admission.leave(); // Waiting on another server does not touch the database, let someone else in meanwhile
+                admitted = false;
+
+                long waitStart = System.nanoTime();
+                manager.getHandoff().awaitRelease(player_id); // This function runs in its own connection thread per player, so we block until the closing server releases the session
+                handoffWaitTime.recordSince(waitStart);
 
-            if (manager.hasSessionOpen(player_id, manager.getServerID())){ // if a session is already open data should be up to date so just keep it open and resume
+                if (!admission.enter()){
+                    event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, GlobalConfig.admission_kick_message);
+                    return;
+                }
+                admitted = true;
+
+                if (manager.hasSessionOpen(player_id)){ // if a session is already open data should be up to date so just keep it open and resume
+                    return;
+                }
+
+                manager.createUserSession(event.getUniqueId(), player_id); //Create session
+            } else if (acquire.isOpen()){
                 return;
             }
 
-            manager.createUserSessions(player_id, manager.getServerID()); //Create session
+            manager.getJournal().open(event.getUniqueId(), player_id);
 
-            for (SessionDependency dependency : manager.getRegisteredDependency()){ // Need to use thread safe caching as all dependencies are being called async
-                dependency.onSessionCreate(event.getUniqueId()); // Call all session dependency on new created session
-            }
+            manager.getDependencies().create(event.getUniqueId()).join(); // Dependencies run in parallel where their ordering allows, need to use thread safe caching
         } catch (SQLException |InterruptedException e){
             event.disallow(AsyncPlayerPreLoginEvent.Result.KICK_OTHER, "Unable to start player session, database exception");
             manager.getLogger().severe("Unable to connect player to server, " + event.getUniqueId().toString());
             e.printStackTrace();
+        } finally {
+            if (admitted){
+                admission.leave();
+            }
+            preLoginTime.recordSince(start);
         }
     }
 
     @EventHandler(priority = EventPriority.MONITOR)
     public void onPreLoginMnoitor(AsyncPlayerPreLoginEvent event){
-        if (event.getLoginResult().equals(AsyncPlayerPreLoginEvent.Result.ALLOWED)){
-            return;
-        }
+        try {
+            if (untouched.remove(event) || event.getLoginResult().equals(AsyncPlayerPreLoginEvent.Result.ALLOWED)){
+                return;
+            }
 
-        cleanup(event.getUniqueId());
+            cleanup(event.getUniqueId());
+        } finally {
+            Attempt attempt = preLogins.get(event.getUniqueId());
+            if (attempt != null && attempt.event == event && preLogins.remove(event.getUniqueId(), attempt)){
+                attempt.result.complete(event); // The result is final now, a coalesced login may copy it
+            }
+        }
     }
 
     @EventHandler(priority = EventPriority.LOWEST, ignoreCancelled = true)
@@ -79,7 +167,7 @@ public class SessionEvents implements Listener {
         });
     }
 
-    private void cleanup(UUID uuid){
+    void cleanup(UUID uuid){
         try {
             int player_id = manager.getPlayerID(uuid);
 
@@ -89,14 +177,26 @@ public class SessionEvents implements Listener {
             }
 
             // We check for existing session just in case it was already closed remotely by the other task
-            if (manager.hasClosingSession(player_id, manager.getServerID())) {  // Prevents flushing null cache data into the database from an already closed session
+            if (manager.hasClosingSession(player_id) || manager.isFenced(player_id)) {  // Prevents flushing null cache data into the database from an already closed session
                 return;
             }
 
-            manager.markSessionsClosing(manager.getServerID(), player_id);
+            if (!manager.markSessionClosing(uuid, player_id)){
+                return; // Taken over by another server, what we hold is stale and was dropped without saving
+            }
             manager.finishClosedSession(uuid, player_id); // FLush caches and drop the session
         } catch (SQLException e){
             e.printStackTrace();
         }
     }
+
+    private static class Attempt {
+        private final AsyncPlayerPreLoginEvent event;
+        private final CompletableFuture<AsyncPlayerPreLoginEvent> result;
+
+        private Attempt(AsyncPlayerPreLoginEvent event){
+            this.event = event;
+            this.result = new CompletableFuture<>();
+        }
+    }
 }
@@ -5,33 +5,97 @@ import co.aikar.taskchain.BukkitTaskChainFactory;
 import co.aikar.taskchain.TaskChain;
 import co.aikar.taskchain.TaskChainFactory;
 import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.cache.MainThreadQueue;
+import net.crashcraft.sessionmanager.cache.RemoteSaveManager;
+import net.crashcraft.sessionmanager.cache.SnapshotStore;
 import net.crashcraft.sessionmanager.config.BaseConfig;
 import net.crashcraft.sessionmanager.config.GlobalConfig;
+import net.crashcraft.sessionmanager.database.BackgroundThrottle;
+import net.crashcraft.sessionmanager.database.DatabaseLane;
+import net.crashcraft.sessionmanager.database.UuidCodec;
+import net.crashcraft.sessionmanager.handoff.DatabaseHandoffTransport;
+import net.crashcraft.sessionmanager.handoff.HandoffTransport;
+import net.crashcraft.sessionmanager.handoff.IntentFeed;
+import net.crashcraft.sessionmanager.handoff.LocalHandoffTransport;
+import net.crashcraft.sessionmanager.handoff.SessionHandoff;
+import net.crashcraft.sessionmanager.journal.JournalEntry;
+import net.crashcraft.sessionmanager.journal.SessionJournal;
+import net.crashcraft.sessionmanager.metrics.MetricsCommand;
+import net.crashcraft.sessionmanager.metrics.MetricsExporter;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
 import org.bukkit.Bukkit;
-import org.bukkit.OfflinePlayer;
+import org.bukkit.command.PluginCommand;
 import org.bukkit.configuration.InvalidConfigurationException;
 import org.bukkit.configuration.file.YamlConfiguration;
 import org.bukkit.entity.Player;
+import org.bukkit.plugin.IllegalPluginAccessException;
+import org.bukkit.plugin.PluginDescriptionFile;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.plugin.java.JavaPluginLoader;
+import org.cache2k.Cache;
+import org.cache2k.Cache2kBuilder;
 
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
+import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Level;
 
 public class SessionManager extends JavaPlugin {
     private static SessionManager manager;
 
     private int serverID = 0;
-    private int taskID = 0;
-    private Set<SessionDependency> registeredDependency;
+    private SessionSweeper sweeper;
+    private DependencyGraph dependencies;
+    private SessionMetrics metrics;
+    private SessionHandoff handoff;
+    private SessionWriter writer;
+    private AdmissionGate admission;
+    private DatabaseLane loginLane;
+    private DatabaseLane backgroundLane;
+    private BackgroundThrottle backgroundThrottle;
+    private SnapshotStore snapshots;
+    private UuidCodec uuids;
+    private RemoteSaveManager remoteSaves;
+    private IntentFeed intents;
+    private LongAdder intentCount;
+    private MainThreadQueue mainThread;
+    private Set<Integer> closingPlayers;
+    private SessionRegistry registry;
+    private LongAdder registryDrift;
+    private LongAdder leaseTakeovers;
+    private LongAdder leasesLost;
+    private ScheduledExecutorService leaseTimer; // Off the tick so a stalled main thread can not let the leases run out
+    private Cache<UUID, Integer> playerIDs;
+    private SessionJournal journal;
+    private Collection<JournalEntry> recoveredSessions;
 
     private boolean loaded = false;
 
+    public SessionManager(){
+        super();
+    }
+
+    /*
+     * Used by the headless harness to run the plugin without a server, see JavaPlugin's initialization constructor
+     */
+    protected SessionManager(JavaPluginLoader loader, PluginDescriptionFile description, File dataFolder, File file){
+        super(loader, description, dataFolder, file);
+    }
+
     private static TaskChainFactory taskChainFactory;
     public static <T> TaskChain<T> newChain() {
         return taskChainFactory.newChain();
@@ -49,7 +113,9 @@ public class SessionManager extends JavaPlugin {
 
         manager = this;
 
-        registeredDependency = new HashSet<>();
+        metrics = new SessionMetrics();
+        dependencies = new DependencyGraph(getLogger(), metrics);
+        intentCount = metrics.counter("sessionmanager_intents_total");
     }
 
     @Override
@@ -73,7 +139,11 @@ public class SessionManager extends JavaPlugin {
             Database db = PooledDatabaseOptions.builder().options(options).createHikariDatabase();
             DB.setGlobalDatabase(db);*/
 
-            DB.setGlobalDatabase(BukkitDB.createHikariDatabase(this, GlobalConfig.sql_user, GlobalConfig.sql_pass, GlobalConfig.sql_db, GlobalConfig.sql_ip));
+            // Logins and handoffs get their own pool so a burst of saves never holds the connections a joining player needs
+            loginLane = new DatabaseLane("login", createDatabase("login", GlobalConfig.database_login_connections), GlobalConfig.database_login_connections, metrics);
+            backgroundLane = new DatabaseLane("background", createDatabase("background", GlobalConfig.database_background_connections), GlobalConfig.database_background_connections, metrics);
+            DB.setGlobalDatabase(backgroundLane.getDatabase()); // Plugins saving through DB share the background pool
+            uuids = new UuidCodec(GlobalConfig.database_binary_uuids);
 
             try {
                 DB.getFirstColumn("SELECT 1"); //Test quarry
@@ -90,7 +160,47 @@ public class SessionManager extends JavaPlugin {
                 return;
             }
 
-            removeAllPlayerSessions(serverID); //We will force remove all sessions as they would have came from an improper shutdown
+            dependencies.setDefaultTimeout(GlobalConfig.dependency_timeout);
+
+            writer = new SessionWriter(serverID, loginLane, GlobalConfig.database_write_window, GlobalConfig.lease_duration, metrics);
+            admission = new AdmissionGate(GlobalConfig.admission_max_concurrent, GlobalConfig.admission_max_wait, metrics);
+            backgroundThrottle = new BackgroundThrottle(GlobalConfig.database_background_connections, GlobalConfig.database_background_busy_limit,
+                    () -> admission.getActive() + loginLane.getActive(), metrics);
+            snapshots = new SnapshotStore(this, loginLane, uuids, GlobalConfig.cache_snapshot_max_age); // Written and read on the handoff path
+            remoteSaves = new RemoteSaveManager(backgroundLane, GlobalConfig.remote_min_interval, GlobalConfig.remote_max_interval, GlobalConfig.remote_expiry, metrics, getLogger());
+            mainThread = new MainThreadQueue(this, GlobalConfig.sync_tick_budget, metrics);
+            closingPlayers = ConcurrentHashMap.newKeySet();
+            registry = new SessionRegistry(getLogger());
+            registryDrift = metrics.counter("sessionmanager_registry_drift_total");
+            leaseTakeovers = metrics.counter("sessionmanager_lease_takeovers_total");
+            leasesLost = metrics.counter("sessionmanager_lease_lost_total");
+            metrics.gauge("sessionmanager_registry_sessions", registry::size);
+
+            journal = new SessionJournal(new File(dataFolder, "journal"), GlobalConfig.journal_segment_size * 1024, GlobalConfig.journal_max_segments, getLogger());
+            recoveredSessions = journal.recover();
+
+            migrateSessions();
+            removeAllPlayerSessions(serverID); //We will force remove all sessions as they would have came from an improper shutdown, apart from ones the journal can still recover
+
+            if (uuids.isBinary()){
+                migrateUuids();
+            }
+
+            installProcedures();
+            DB.executeUpdateAsync("CALL `reset_ai`('players');"); // Logins no longer burn ids so once per start is enough
+
+            playerIDs = Cache2kBuilder.of(UUID.class, Integer.class)
+                    .name("SessionManager-player-ids")
+                    .entryCapacity(GlobalConfig.player_id_cache_size)
+                    .eternal(true) // A players id never changes
+                    .build();
+
+            handoff = new SessionHandoff(createHandoffTransport(), this::hasClosingSessionAnywhere, GlobalConfig.handoff_fallback_poll, getLogger());
+            handoff.start();
+
+            intents = new IntentFeed(backgroundLane, GlobalConfig.serverName, GlobalConfig.intent_poll, GlobalConfig.intent_secret,
+                    GlobalConfig.intent_max_per_sender, GlobalConfig.intent_expiry, this::prefetch, getLogger());
+            intents.start();
 
             loaded = true;
         } catch (Exception e){
@@ -103,162 +213,616 @@ public class SessionManager extends JavaPlugin {
             return;
 
         taskChainFactory = BukkitTaskChainFactory.create(this);
+        sweeper = new SessionSweeper(this::finishClosedSessions, () -> registry.size() > 0,
+                GlobalConfig.sweeper_min_interval, GlobalConfig.sweeper_max_interval, GlobalConfig.sweeper_empty_interval, metrics.histogram("sessionmanager_sweep_seconds"), metrics.counter("sessionmanager_sweeps_total"), getLogger());
+        handoff.setActivityListener(sweeper::notifyActivity); // Releases mean transfers are going on, expect sessions to close here too
+        sweeper.start();
+
+        metrics.gauge("sessionmanager_sweeper_interval_ms", sweeper::getInterval);
+
+        PluginCommand command = getCommand("sessionmetrics");
+        if (command != null){
+            command.setExecutor(new MetricsCommand(metrics));
+        }
+        if (!GlobalConfig.metrics_file.isEmpty()){
+            long interval = GlobalConfig.metrics_interval * 20L;
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this, new MetricsExporter(metrics, new File(getDataFolder(), GlobalConfig.metrics_file), getLogger()), interval, interval);
+        }
+        leaseTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SessionManager Lease Renewal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        leaseTimer.scheduleAtFixedRate(this::renewLeases, GlobalConfig.lease_renew_interval, GlobalConfig.lease_renew_interval, TimeUnit.SECONDS);
+        if (GlobalConfig.registry_reconcile_interval > 0){
+            long interval = GlobalConfig.registry_reconcile_interval * 20L;
+            Bukkit.getScheduler().runTaskTimerAsynchronously(this, this::reconcileRegistry, interval, interval);
+        }
+
         Bukkit.getPluginManager().registerEvents(new SessionEvents(this), this);
-        taskID = Bukkit.getScheduler().runTaskTimerAsynchronously(this, this::finishClosedSessions, 2, 2).getTaskId(); //Register task and get its id
+        Bukkit.getMessenger().registerIncomingPluginChannel(this, IntentFeed.CHANNEL, intents);
+        Bukkit.getScheduler().runTask(this, this::finishRecovery); // Runs once every plugin is enabled and their caches had a chance to claim journaled state
+    }
+
+    private void finishRecovery(){
+        if (recoveredSessions.isEmpty()){
+            return;
+        }
+
+        journal.awaitRecovery().whenComplete((ignored, e) -> {
+            for (JournalEntry entry : recoveredSessions){
+                if (journal.hasUnrecoveredState(entry.getUuid())){
+                    getLogger().severe("Journaled cache state for " + entry.getUuid() + " was not claimed by any cache, it is kept in the journal");
+                } else {
+                    journal.close(entry.getUuid());
+                }
+
+                if (entry.isOpen()){
+                    writer.release(entry.getPlayerID())
+                            .thenRun(() -> {
+                                registry.remove(entry.getPlayerID());
+                                handoff.publishRelease(entry.getPlayerID());
+                            })
+                            .whenComplete((ignore, ex) -> closingPlayers.remove(entry.getPlayerID()));
+                }
+            }
+
+            getLogger().info("Recovered " + recoveredSessions.size() + " sessions from the journal");
+            recoveredSessions = Collections.emptyList();
+        });
     }
 
     @Override
     public void onDisable(){ //Flush and cleanup sessions
-        Bukkit.getScheduler().cancelTask(taskID);
-
         if (!loaded)
             return;
 
-        long endTime = System.currentTimeMillis() + 30000; // 30 second timeout
+        long deadline = System.currentTimeMillis() + GlobalConfig.shutdown_deadline;
+        leaseTimer.shutdownNow(); // The leases are extended over the whole flush below
         try {
-            while (Bukkit.getScheduler().isCurrentlyRunning(taskID)){
-                if (System.currentTimeMillis() >= endTime){
-                    getLogger().severe("Sessions manager task has not closed after 30 seconds");
-                    break;
-                }
-                Thread.sleep(100);
+            if (!sweeper.stop(Math.min(30000, GlobalConfig.shutdown_deadline / 2))){
+                getLogger().severe("Sessions manager task has not closed in time");
             }
 
             markAllSessionsClosing(serverID); //Mark all sessions as closing so next call can cleanup data.
+            writer.renew(GlobalConfig.lease_duration + (int) Math.max(0, (deadline - System.currentTimeMillis()) / 1000)); // Nobody may take over while we are still flushing
+
+            flushSessions(deadline);
 
-            finishClosedSessions(); //Finish all tasks off for the last time to make sure none are not processed.
-            getLogger().info("Closed all sessions");
+            writer.shutdown(5000);
         } catch (InterruptedException|SQLException e){
             e.printStackTrace();
+        } finally {
+            handoff.close();
+            intents.close();
+            remoteSaves.shutdown();
+            dependencies.shutdown();
+            journal.shutdown();
+            loginLane.getDatabase().close(); // The background pool stays up as the global database for plugins disabling after us
+        }
+    }
+
+    private HandoffTransport createHandoffTransport(){
+        if (GlobalConfig.handoff_transport.equalsIgnoreCase("local")){
+            getLogger().warning("Using the local handoff transport, session releases will not be seen by other servers");
+            return new LocalHandoffTransport();
         }
+        return new DatabaseHandoffTransport(GlobalConfig.handoff_poll, loginLane);
+    }
+
+    /*
+     * Starts loading what dependencies can load before the player has a session here, for when the player is about to
+     * switch to this server. The session is still acquired as usual once they log in.
+     */
+    public void prefetch(UUID uuid){
+        if (!loaded || Bukkit.getPlayer(uuid) != null){
+            return;
+        }
+
+        intentCount.increment();
+        dependencies.intent(uuid);
     }
 
     public void registerDependency(SessionDependency dependency, String name){
-        registeredDependency.add(dependency);
-        getLogger().info("Session dependency registered [" + name + "]");
+        registerDependency(dependency, name, -1);
+    }
+
+    /*
+     * Dependencies listed in after are created before this one and closed after it, a timeout below 0 uses the configured default
+     */
+    public void registerDependency(SessionDependency dependency, String name, long timeout, String... after){
+        dependencies.register(dependency, name, timeout, after);
+        getLogger().info("Session dependency registered [" + name + "]" + (after.length == 0 ? "" : " after " + Arrays.toString(after)));
     }
 
-    private void finishClosedSessions(){
+    private int finishClosedSessions(){
         try {
-            Set<CompletableFuture<Void>> futures = new HashSet<>();
-            HashMap<UUID, Integer> players = new HashMap<>();
+            List<CompletableFuture<Void>> closing = new ArrayList<>();
 
-            for (DbRow row : DB.getResults("SELECT id, uuid FROM players WHERE id IN (SELECT player_id FROM sessions WHERE server_id = ? AND isclosing = 1);", serverID)){
-                UUID uuid = UUID.fromString(new String((byte[]) row.get("uuid")));
+            for (DbRow row : backgroundLane.query("closing_sessions", db -> db.getResults("SELECT p.id, p.uuid FROM sessions s INNER JOIN players p ON p.id = s.player_id WHERE s.server_id = ? AND s.isclosing = 1;", serverID))){
+                UUID uuid = UuidCodec.decode(row.get("uuid"));
                 int player_id = row.getInt("id");
 
-                futures.addAll(finishClosedSessionsAsync(uuid)); // adding all futures, at this point most things should be closed by now
-                players.putIfAbsent(uuid, player_id);
-            }
+                registry.closing(player_id); // Marked by the server the player moved to
+                if (!closingPlayers.add(player_id)){
+                    continue; // Still being closed from an earlier sweep
+                }
 
-            for (CompletableFuture<Void> future : futures){
-                future.join(); // make sure the futures are complete
+                closing.add(closeSession(uuid, player_id));
             }
 
-            for (Map.Entry<UUID, Integer> entry : players.entrySet()){
-                finishClosingSession(entry.getValue(), entry.getKey()); // finish up by kicking the player
-            }
+            return closing.size();
         } catch (SQLException e){
             e.printStackTrace();
+            return 0;
         }
     }
 
-    @SuppressWarnings("Duplicates")
-    void finishClosedSession(UUID uuid, int player_id) throws SQLException{
-        Set<CompletableFuture<Void>> futures = new HashSet<>();
+    /*
+     * Closes every session on this server within the shutdown deadline. Only sessions whose data was written are released,
+     * anything that failed or was not flushed in time stays closing with its journal entry open, so the next start recovers
+     * what was journaled and releases it.
+     */
+    private void flushSessions(long deadline) throws SQLException, InterruptedException{
+        List<ShutdownFlush.Session> sessions = new ArrayList<>();
+        for (DbRow row : backgroundLane.query("closing_sessions", db -> db.getResults("SELECT p.id, p.uuid FROM sessions s INNER JOIN players p ON p.id = s.player_id WHERE s.server_id = ? AND s.isclosing = 1;", serverID))){
+            UUID uuid = UuidCodec.decode(row.get("uuid"));
+            int player_id = row.getInt("id");
+            sessions.add(new ShutdownFlush.Session(uuid, player_id, registry.getOpened(player_id)));
+        }
 
-        for (SessionDependency dependency : registeredDependency){
-            dependency.onSessionClose(uuid);
-            CompletableFuture<Void> future = dependency.onSessionCloseWithFuture(uuid);
-            if (future != null){
-                futures.add(future);
+        if (sessions.isEmpty()){
+            return;
+        }
+
+        getLogger().info("Flushing " + sessions.size() + " sessions, " + Math.max(0, (deadline - System.currentTimeMillis()) / 1000) + "s until the shutdown deadline");
+        List<ShutdownFlush.Session> flushed = new ShutdownFlush(dependencies, mainThread, GlobalConfig.shutdown_workers, getLogger()).flush(sessions, deadline);
+
+        List<CompletableFuture<Void>> releases = new ArrayList<>();
+        for (ShutdownFlush.Session session : flushed){
+            releases.add(writer.release(session.getPlayerID())
+                    .thenRun(() -> {
+                        registry.remove(session.getPlayerID());
+                        journal.close(session.getUuid());
+                        handoff.publishRelease(session.getPlayerID());
+                    }));
+        }
+
+        try {
+            CompletableFuture.allOf(releases.toArray(new CompletableFuture[0])).get(Math.max(1000, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException|TimeoutException e){
+            getLogger().log(Level.SEVERE, "Not every flushed session was released, the next start releases them", e);
+        }
+
+        int total = sessions.size();
+        if (flushed.size() < total){
+            sessions.removeAll(flushed);
+            for (ShutdownFlush.Session session : sessions){
+                getLogger().severe("Session for " + session.getUuid() + " failed to flush or missed the shutdown deadline, it is recovered from the journal on the next start");
             }
         }
 
-        for (CompletableFuture<Void> future : futures){
-            future.join();
+        getLogger().info("Flushed " + flushed.size() + "/" + total + " sessions");
+    }
+
+    void finishClosedSession(UUID uuid, int player_id) throws SQLException{
+        if (!closingPlayers.add(player_id)){
+            return; // Already being closed by the sweeper
         }
 
-        finishClosingSession(player_id, uuid);
+        await(closeSession(uuid, player_id));
     }
 
-    @SuppressWarnings("Duplicates")
-    Set<CompletableFuture<Void>> finishClosedSessionsAsync(UUID uuid){
-        Set<CompletableFuture<Void>> futures = new HashSet<>();
+    private static void await(CompletableFuture<Void> future) throws SQLException{
+        awaitValue(future);
+    }
 
-        for (SessionDependency dependency : registeredDependency){
-            dependency.onSessionClose(uuid);
-            CompletableFuture<Void> future = dependency.onSessionCloseWithFuture(uuid);
-            if (future != null){
-                futures.add(future);
+    private static <T> T awaitValue(CompletableFuture<T> future) throws SQLException{
+        try {
+            return future.join();
+        } catch (CompletionException e){
+            if (e.getCause() instanceof SQLException){
+                throw (SQLException) e.getCause();
             }
+            throw e;
         }
+    }
 
-        return futures;
+    /*
+     * Each player is released as soon as their own dependencies are done, a slow unload only holds back that player. One
+     * past its deadline keeps the row closing, and the sweeper away through closingPlayers, until it really finished.
+     */
+    private CompletableFuture<Void> closeSession(UUID uuid, int player_id){
+        return dependencies.close(uuid) // Failures are reported by the graph, the session is released once nothing runs anymore
+                .thenCompose(ignored -> releaseSession(player_id, uuid))
+                .whenComplete((ignored, e) -> closingPlayers.remove(player_id));
     }
 
-    void finishClosingSession(int player_id, UUID uuid) throws SQLException{
-        OfflinePlayer player = Bukkit.getOfflinePlayer(uuid);
-        if (player.isOnline()){
-            Player p = player.getPlayer();
+    private CompletableFuture<Void> releaseSession(int player_id, UUID uuid){
+        Player player = Bukkit.getPlayer(uuid);
+        if (player != null){
+            player.kickPlayer("Kicking User for closed session on server"); // This should not show up as the proxy is mid switch but it does ensure the session is closed
+        }
 
-            if (p == null){
-                return;
-            }
+        return writer.release(player_id)
+                .thenRun(() -> {
+                    registry.remove(player_id);
+                    journal.close(uuid);
+                    handoff.publishRelease(player_id); // Wake up any server waiting on this session
+                });
+    }
 
-            p.kickPlayer("Kicking User for closed session on server"); // This should not show up as the proxy is mid switch but it does ensure the session is closed
+    /*
+     * Creates or updates the user, marks their sessions on other servers closing and creates the session here if nothing
+     * is closing, all in a single call.
+     */
+    SessionAcquire acquireSession(UUID uuid, String username) throws SQLException{
+        DbRow row = loginLane.query("acquire_session", db -> db.getFirstRow("CALL " + acquireProcedure() + "(?, ?, ?, ?);", uuids.encode(uuid), username, serverID, GlobalConfig.lease_duration));
+        if (row == null || row.get("player_id") == null){
+            return new SessionAcquire(0, false, false, false, 0);
         }
 
-        removePlayerSession(player_id, serverID);
+        int player_id = ((Number) row.get("player_id")).intValue();
+        playerIDs.put(uuid, player_id);
+
+        SessionAcquire acquire = new SessionAcquire(player_id,
+                ((Number) row.get("is_closing")).intValue() > 0,
+                ((Number) row.get("is_open")).intValue() > 0,
+                ((Number) row.get("is_created")).intValue() > 0,
+                ((Number) row.get("fence")).longValue());
+        if (acquire.isCreated() || acquire.isOpen()){
+            registry.open(uuid, player_id, acquire.getFence());
+        }
+
+        int taken = ((Number) row.get("taken_over")).intValue();
+        if (taken > 0){
+            leaseTakeovers.add(taken);
+            getLogger().warning("Took over " + taken + " expired session leases of " + uuid);
+        }
+        return acquire;
     }
 
-    void createUser(UUID uuid, String username) throws SQLException{
-        DB.executeInsert("INSERT INTO players (username, uuid) VALUES (?, ?) ON DUPLICATE KEY UPDATE username = VALUES(username);", username, uuid.toString());
-        DB.executeUpdateAsync("CALL `reset_ai`('players');");
+    protected Database createDatabase(String lane, int connections) throws SQLException{
+        DatabaseOptions options = DatabaseOptions.builder()
+                .poolName(getDescription().getName() + " " + lane)
+                .logger(getLogger())
+                .mysql(GlobalConfig.sql_user, GlobalConfig.sql_pass, GlobalConfig.sql_db, GlobalConfig.sql_ip)
+                .build();
+
+        return PooledDatabaseOptions.builder()
+                .options(options)
+                .maxConnections(connections)
+                .createHikariDatabase();
     }
 
-    void removePlayerSession(int player_id, int server_id) throws SQLException{
-        DB.executeUpdate("DELETE FROM sessions WHERE server_id = ? AND player_id = ?;", server_id, player_id);
+    private String acquireProcedure(){
+        return uuids.isBinary() ? "session_acquire_bin_v2" : "session_acquire_v2";
+    }
+
+    protected void installProcedures() throws SQLException{
+        String procedure = acquireProcedure();
+        if (DB.getFirstColumn("SELECT ROUTINE_NAME FROM information_schema.ROUTINES WHERE ROUTINE_SCHEMA = DATABASE() AND ROUTINE_NAME = ?;", procedure) != null){
+            return;
+        }
+
+        try (Connection connection = DB.getGlobalDatabase().getConnection();
+             Statement statement = connection.createStatement()){
+            statement.execute("CREATE PROCEDURE " + procedure + "(IN p_uuid " + (uuids.isBinary() ? "BINARY(16)" : "VARCHAR(36)") + ", IN p_username VARCHAR(16), IN p_server INT, IN p_lease INT) " +
+                    "BEGIN " +
+                    "DECLARE v_id INT DEFAULT NULL; " +
+                    "DECLARE v_closing INT DEFAULT 0; " +
+                    "DECLARE v_open INT DEFAULT 0; " +
+                    "DECLARE v_created INT DEFAULT 0; " +
+                    "DECLARE v_taken INT DEFAULT 0; " +
+                    "DECLARE v_fence BIGINT DEFAULT 0; " +
+                    "SELECT id INTO v_id FROM players WHERE uuid = p_uuid; " +
+                    "IF v_id IS NULL THEN " +
+                    "INSERT IGNORE INTO players (username, uuid) VALUES (p_username, p_uuid); " +
+                    "SELECT id INTO v_id FROM players WHERE uuid = p_uuid; " +
+                    "ELSE " +
+                    "UPDATE players SET username = p_username WHERE id = v_id AND username <> p_username; " +
+                    "END IF; " +
+                    "DELETE FROM sessions WHERE player_id = v_id AND server_id != p_server AND lease_until < NOW(); " + // Their server stopped renewing, take over
+                    "SET v_taken = ROW_COUNT(); " +
+                    "UPDATE sessions SET isclosing = 1 WHERE server_id != p_server AND player_id = v_id; " +
+                    "SELECT COUNT(*) INTO v_closing FROM sessions WHERE player_id = v_id AND isclosing = 1; " +
+                    "SELECT COUNT(*) INTO v_open FROM sessions WHERE player_id = v_id AND server_id = p_server AND isclosing = 0; " +
+                    "IF v_closing = 0 AND v_open = 0 THEN " +
+                    "UPDATE players SET fence = fence + 1 WHERE id = v_id; " +
+                    "INSERT IGNORE INTO sessions (player_id, server_id, isclosing, lease_until, fence) SELECT v_id, p_server, 0, TIMESTAMPADD(SECOND, p_lease, NOW()), fence FROM players WHERE id = v_id; " +
+                    "SET v_created = ROW_COUNT(); " +
+                    "END IF; " +
+                    "SELECT fence INTO v_fence FROM sessions WHERE player_id = v_id AND server_id = p_server; " +
+                    "SELECT v_id AS player_id, v_closing AS is_closing, v_open AS is_open, v_created AS is_created, v_fence AS fence, v_taken AS taken_over; " +
+                    "END");
+            getLogger().info("Installed " + procedure + " procedure");
+        } catch (SQLException e){
+            if (e.getErrorCode() != 1304){ // ER_SP_ALREADY_EXISTS, another server beat us to it
+                throw e;
+            }
+        }
+    }
+
+    /*
+     * Converts players.uuid to BINARY(16) in place, text uuids are converted in batches so no single statement locks the
+     * whole table. One way, every server has to run with binary uuids once it is done.
+     */
+    private void migrateUuids() throws SQLException{
+        String type = DB.getFirstColumn("SELECT COLUMN_TYPE FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = 'players' AND COLUMN_NAME = 'uuid';");
+        if (type == null || type.equalsIgnoreCase("binary(16)")){
+            return;
+        }
+
+        if (!GlobalConfig.database_migrate_uuids){
+            throw new IllegalStateException("players.uuid is " + type + " but database.binary-uuids is enabled, stop every server and start one with database.migrate-uuids to convert it");
+        }
+
+        getLogger().warning("Migrating players.uuid from " + type + " to BINARY(16)");
+        if (!type.toLowerCase().startsWith("varbinary")){
+            DB.executeUpdate("ALTER TABLE players MODIFY uuid VARBINARY(36) NOT NULL;"); // Raw bytes can not go into a text column
+        }
+
+        long migrated = 0;
+        int batch;
+        do {
+            batch = DB.executeUpdate("UPDATE players SET uuid = UNHEX(REPLACE(uuid, '-', '')) WHERE LENGTH(uuid) = 36 LIMIT 10000;");
+            migrated += batch;
+        } while (batch > 0);
+
+        DB.executeUpdate("ALTER TABLE players MODIFY uuid BINARY(16) NOT NULL;");
+        getLogger().warning("Migrated " + migrated + " player uuids to BINARY(16)");
     }
 
     private void removeAllPlayerSessions(int server_id) throws SQLException{
-        DB.executeUpdate("DELETE FROM sessions WHERE server_id = ?;", server_id);
+        List<Object> recovering = new ArrayList<>();
+        for (JournalEntry entry : recoveredSessions){
+            if (entry.isOpen()){
+                recovering.add(entry.getPlayerID());
+            }
+        }
+
+        if (recovering.isEmpty()){
+            DB.executeUpdate("DELETE FROM sessions WHERE server_id = ?;", server_id);
+            return;
+        }
+
+        // Sessions with journaled state stay closing so other servers wait for the recovered data to be flushed
+        String in = String.join(", ", Collections.nCopies(recovering.size(), "?"));
+        List<Object> params = new ArrayList<>(recovering.size() + 2);
+        params.add(GlobalConfig.lease_duration);
+        params.add(server_id);
+        params.addAll(recovering);
+
+        DB.executeUpdate("UPDATE sessions SET isclosing = 1, lease_until = TIMESTAMPADD(SECOND, ?, NOW()) WHERE server_id = ? AND player_id IN (" + in + ");", params.toArray());
+        params.remove(0);
+        DB.executeUpdate("DELETE FROM sessions WHERE server_id = ? AND player_id NOT IN (" + in + ");", params.toArray());
+
+        Map<Integer, Long> held = new HashMap<>(); // Renewed above, so no other server can take these over from here on
+        for (DbRow row : DB.getResults("SELECT player_id, fence FROM sessions WHERE server_id = ?;", server_id)){
+            held.put(row.getInt("player_id"), ((Number) row.get("fence")).longValue());
+        }
+
+        recoveredSessions.removeIf(entry -> {
+            if (!entry.isOpen() || held.containsKey(entry.getPlayerID())){
+                return false;
+            }
+
+            getLogger().severe("Session for " + entry.getUuid() + " was taken over while this server was down, discarding its journaled state");
+            journal.discardRecovered(entry.getUuid());
+            return true;
+        });
+
+        for (JournalEntry entry : recoveredSessions){
+            if (entry.isOpen()){
+                registry.open(entry.getUuid(), entry.getPlayerID(), held.get(entry.getPlayerID()));
+                registry.closing(entry.getPlayerID());
+                closingPlayers.add(entry.getPlayerID()); // Keep the sweeper away until the journal is flushed
+            }
+        }
     }
 
-    boolean hasSessionOpen(int player_id, int server_id) throws SQLException{
-        return DB.getFirstColumnResults("SELECT player_id FROM sessions WHERE isclosing = 0 AND player_id = ? AND server_id = ?;", player_id, server_id).size() > 0;
+    /*
+     * Adds the lease and fencing columns, sessions from servers that have not been updated yet have no lease and are
+     * never taken over
+     */
+    protected void migrateSessions() throws SQLException{
+        addColumn("players", "fence", "BIGINT NOT NULL DEFAULT 0");
+        addColumn("sessions", "lease_until", "TIMESTAMP NULL DEFAULT NULL");
+        addColumn("sessions", "fence", "BIGINT NOT NULL DEFAULT 0");
     }
 
-    void createUserSessions(int player_id, int server_id) throws SQLException{
-        DB.executeInsert("INSERT IGNORE INTO sessions (player_id, server_id, isclosing) VALUES (?, ?, 0);", player_id, server_id);
+    /*
+     * Each column on its own so a migration cut short half way is finished by the next start
+     */
+    private void addColumn(String table, String column, String definition) throws SQLException{
+        if (DB.getFirstColumn("SELECT COLUMN_NAME FROM information_schema.COLUMNS WHERE TABLE_SCHEMA = DATABASE() AND TABLE_NAME = ? AND COLUMN_NAME = ?;", table, column) != null){
+            return;
+        }
+
+        getLogger().warning("Adding column " + table + "." + column);
+        try {
+            DB.executeUpdate("ALTER TABLE " + table + " ADD COLUMN " + column + " " + definition + ";");
+        } catch (SQLException e){
+            if (e.getErrorCode() != 1060){ // ER_DUP_FIELDNAME, another server beat us to it
+                throw e;
+            }
+        }
     }
 
-    boolean hasClosingSessionAnywhere(int player_id) throws SQLException{
-        return DB.getFirstColumnResults("SELECT player_id FROM sessions WHERE isclosing = 1 AND player_id = ?;", player_id).size() > 0;
+    boolean hasSessionOpen(int player_id){ // Only this servers sessions, answered by the registry
+        return registry.isOpen(player_id);
     }
 
-    boolean hasClosingSession(int player_id, int server_id) throws SQLException{
-        return DB.getFirstColumnResults("SELECT player_id FROM sessions WHERE isclosing = 1 AND player_id = ? AND server_id = ?;", player_id, server_id).size() > 0;
+    void createUserSession(UUID uuid, int player_id) throws SQLException{ // Coalesced with other writes to the sessions table
+        registry.open(uuid, player_id, awaitValue(writer.create(player_id)));
+    }
+
+    boolean hasClosingSessionAnywhere(int player_id) throws SQLException{ // Read only, expired leases are taken over on the renew timer
+        return loginLane.query("has_closing_anywhere", db -> db.getFirstColumnResults("SELECT player_id FROM sessions WHERE isclosing = 1 AND player_id = ?;", player_id).size() > 0);
+    }
+
+    boolean hasClosingSession(int player_id){ // Only this servers sessions, answered by the registry
+        return registry.isClosing(player_id);
     }
 
     int getPlayerID(UUID uuid) throws SQLException {
-        Object value = DB.getFirstColumn("SELECT id FROM players WHERE uuid = ?", uuid.toString());
+        int local = registry.getPlayerID(uuid);
+        if (local != 0){
+            return local;
+        }
+
+        Integer cached = playerIDs.peek(uuid);
+        if (cached != null){
+            return cached;
+        }
+
+        Object value = backgroundLane.query("player_id", db -> db.getFirstColumn("SELECT id FROM players WHERE uuid = ?", uuids.encode(uuid)));
         if (value == null){
             return 0;
         }
-        return (int) value;
+
+        int player_id = (int) value;
+        playerIDs.put(uuid, player_id);
+        return player_id;
     }
 
     private int getServerID(String name) throws SQLException{
         return (int) DB.getFirstColumn("SELECT id FROM servers WHERE `name` = ?", name);
     }
 
-    void markSessionsClosing(int server_id, int player_id) throws SQLException{
-        DB.executeUpdate("UPDATE sessions SET isclosing = 1 WHERE server_id != ? AND player_id = ?;", server_id, player_id);
+    /*
+     * Only ever this servers session, other servers are closed through session_acquire_v2. Returns false when the row was
+     * gone as another server took the session over after our lease ran out, the session is fenced and nothing held for it
+     * may be saved.
+     */
+    boolean markSessionClosing(UUID uuid, int player_id) throws SQLException{
+        if (!awaitValue(writer.markClosing(player_id))){
+            if (registry.lose(player_id)){
+                getLogger().severe("Session for " + uuid + " is no longer in the database, its lease was taken over by another server");
+                fenceSession(uuid, player_id);
+            }
+            return false;
+        }
+
+        registry.closing(player_id);
+        return true;
     }
 
     private void markAllSessionsClosing(int server_id) throws SQLException{
-        DB.executeUpdate("UPDATE sessions SET isclosing = 1 WHERE server_id != ?", server_id);
+        DB.executeUpdate("UPDATE sessions SET isclosing = 1 WHERE server_id = ?", server_id);
+        registry.closingAll();
+    }
+
+    /*
+     * Compares the registry with the sessions table and follows the table where they differ
+     */
+    private void reconcileRegistry(){
+        long started = System.currentTimeMillis();
+        try {
+            List<SessionRegistry.Row> rows = new ArrayList<>();
+            for (DbRow row : backgroundLane.query("registry_reconcile", db -> db.getResults("SELECT s.player_id, s.isclosing, s.fence, p.uuid FROM sessions s INNER JOIN players p ON p.id = s.player_id WHERE s.server_id = ?;", serverID))){
+                rows.add(new SessionRegistry.Row(UuidCodec.decode(row.get("uuid")), row.getInt("player_id"), ((Number) row.get("isclosing")).intValue() > 0,
+                        ((Number) row.get("fence")).longValue()));
+            }
+
+            int drift = registry.reconcile(rows, started, this::fenceSession);
+            if (drift > 0){
+                registryDrift.add(drift);
+                getLogger().warning("Session registry drifted from the database for " + drift + " sessions");
+            }
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Renews every lease of this server at once, fewer rows than sessions means another server took some over
+     */
+    private void renewLeases(){
+        try {
+            int held = registry.size();
+            writer.renew(GlobalConfig.lease_duration).whenComplete((renewed, e) -> {
+                if (e != null){
+                    getLogger().log(Level.SEVERE, "Unable to renew session leases, other servers take them over in " + GlobalConfig.lease_duration + "s", e);
+                } else if (renewed < held){
+                    reconcileRegistry(); // Finds and fences the lost sessions
+                }
+            });
+
+            takeOverExpiredLeases();
+        } catch (RuntimeException e){ // An escaping exception would cancel every later renewal
+            getLogger().log(Level.SEVERE, "Lease renewal failed", e);
+        }
+    }
+
+    /*
+     * Takes over the sessions logins here are waiting on whose server stopped renewing their lease, so a crashed server
+     * holds a login up for a lease and a renew interval at most. Sessions nobody waits on are left for their server to
+     * recover from its journal.
+     */
+    private void takeOverExpiredLeases(){
+        Set<Integer> waiting = handoff.getWaiting();
+        if (waiting.isEmpty()){
+            return;
+        }
+
+        String in = String.join(", ", Collections.nCopies(waiting.size(), "?"));
+        List<Object> params = new ArrayList<>(waiting);
+        params.add(serverID);
+        try {
+            List<Integer> expired = loginLane.query("expired_leases", db -> db.getFirstColumnResults("SELECT player_id FROM sessions WHERE player_id IN (" + in + ") AND server_id != ? AND lease_until < NOW();", params.toArray()));
+            for (int player_id : expired){
+                int taken = loginLane.query("take_over_expired", db -> db.executeUpdate("DELETE FROM sessions WHERE player_id = ? AND server_id != ? AND lease_until < NOW();", player_id, serverID));
+                if (taken > 0){
+                    leaseTakeovers.add(taken);
+                    getLogger().warning("Took over " + taken + " expired session leases of player id " + player_id);
+                    handoff.publishRelease(player_id); // Wakes the waiting login
+                }
+            }
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * The session moved on without us, anything still held for the player is stale and must not be written
+     */
+    private void fenceSession(UUID uuid, int player_id){
+        leasesLost.increment();
+        journal.close(uuid);
+        dependencies.fence(uuid).thenRun(() -> registry.unfence(player_id)); // Nothing stale is left to keep from being saved
+
+        try {
+            Bukkit.getScheduler().runTask(this, () -> {
+                Player player = Bukkit.getPlayer(uuid);
+                if (player != null){
+                    player.kickPlayer("Your session was moved to another server");
+                }
+            });
+        } catch (IllegalPluginAccessException e){
+            // Fenced during shutdown, the plugin is already disabled and the server kicks everyone anyway
+        }
+    }
+
+    boolean isFenced(int player_id){
+        return registry.isFenced(player_id);
+    }
+
+    /*
+     * The fencing token of the players session here, 0 without one. It goes up every time their session moves to a
+     * server, store it with writes to your own tables and reject writes with a lower one to keep out a server that
+     * lost its lease.
+     */
+    public long getFence(UUID uuid){
+        return registry.getFence(uuid);
+    }
+
+    /*
+     * Whether the player holds a session on this server, open or closing. Data held for a player without one was never
+     * theirs to write here.
+     */
+    public boolean hasLocalSession(UUID uuid){
+        return registry.getPlayerID(uuid) != 0;
     }
 
     private static YamlConfiguration initConfig(File configFile, Class<? extends BaseConfig> clazz, Object instance) throws Exception{
@@ -307,7 +871,55 @@ public class SessionManager extends JavaPlugin {
         return serverID;
     }
 
-    Set<SessionDependency> getRegisteredDependency() {
-        return registeredDependency;
+    DependencyGraph getDependencies() {
+        return dependencies;
+    }
+
+    public SessionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public SessionJournal getJournal() {
+        return journal;
+    }
+
+    SessionHandoff getHandoff() {
+        return handoff;
+    }
+
+    AdmissionGate getAdmission() {
+        return admission;
+    }
+
+    public DatabaseLane getLoginLane() {
+        return loginLane;
+    }
+
+    public DatabaseLane getBackgroundLane() {
+        return backgroundLane;
+    }
+
+    public BackgroundThrottle getBackgroundThrottle() {
+        return backgroundThrottle;
+    }
+
+    public UuidCodec getUuids() {
+        return uuids;
+    }
+
+    public SnapshotStore getSnapshots() {
+        return snapshots;
+    }
+
+    public RemoteSaveManager getRemoteSaves() {
+        return remoteSaves;
+    }
+
+    public MainThreadQueue getMainThreadQueue() {
+        return mainThread;
+    }
+
+    public SessionSweeper getSweeper() {
+        return sweeper;
     }
 }
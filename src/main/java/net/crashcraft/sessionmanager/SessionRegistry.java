@@ -0,0 +1,205 @@
+package net.crashcraft.sessionmanager;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.logging.Logger;
+
+/*
+ * This servers sessions as this server wrote them, so questions about them do not need the sessions table. Every change
+ * is applied once the matching database write is done. The database stays authoritative and a periodic reconcile
+ * corrects anything that drifted, like rows changed by hand or a write that failed after the fact. A session whose row is
+ * gone was taken over by another server after its lease ran out and is remembered as fenced until what was held for the
+ * player is dropped or they open a new one here.
+ */
+class SessionRegistry {
+    private static final long REMOVED_MAX_AGE = 60000; // Far longer than a reconcile read takes
+
+    private final Map<Integer, LocalSession> sessions; // By player id
+    private final Map<UUID, Integer> playerIDs;
+    private final Map<Integer, Long> removed; // When sessions were released, so a reconcile does not bring them back
+    private final Set<Integer> fenced;
+    private final Logger logger;
+
+    SessionRegistry(Logger logger){
+        this.logger = logger;
+        this.sessions = new ConcurrentHashMap<>();
+        this.playerIDs = new ConcurrentHashMap<>();
+        this.removed = new ConcurrentHashMap<>();
+        this.fenced = ConcurrentHashMap.newKeySet();
+    }
+
+    void open(UUID uuid, int player_id, long fence){
+        sessions.compute(player_id, (id, session) -> {
+            long now = System.currentTimeMillis();
+            if (session == null || session.closing){
+                return new LocalSession(uuid, player_id, false, fence, now, now); // A reopened session starts over
+            }
+            return session; // Resumed, keeps when it was first opened
+        });
+        playerIDs.put(uuid, player_id);
+        fenced.remove(player_id);
+    }
+
+    void closing(int player_id){
+        sessions.computeIfPresent(player_id, (id, session) -> session.closing ? session : session.withClosing(true));
+    }
+
+    void closingAll(){
+        sessions.replaceAll((id, session) -> session.closing ? session : session.withClosing(true));
+    }
+
+    void remove(int player_id){
+        long now = System.currentTimeMillis();
+        removed.values().removeIf(released -> now - released > REMOVED_MAX_AGE); // Reconcile prunes too, but may be turned off
+        removed.put(player_id, now);
+        LocalSession session = sessions.remove(player_id);
+        if (session != null){
+            playerIDs.remove(session.uuid, player_id);
+        }
+    }
+
+    /*
+     * The sessions row is gone from under us, remembers it as fenced. Returns false if there was no session here.
+     */
+    boolean lose(int player_id){
+        LocalSession session = sessions.remove(player_id);
+        if (session == null){
+            return false;
+        }
+
+        playerIDs.remove(session.uuid, player_id);
+        fenced.add(player_id);
+        return true;
+    }
+
+    void unfence(int player_id){
+        fenced.remove(player_id);
+    }
+
+    boolean isOpen(int player_id){
+        LocalSession session = sessions.get(player_id);
+        return session != null && !session.closing;
+    }
+
+    boolean isFenced(int player_id){
+        return fenced.contains(player_id);
+    }
+
+    boolean isClosing(int player_id){
+        LocalSession session = sessions.get(player_id);
+        return session != null && session.closing;
+    }
+
+    int getPlayerID(UUID uuid){ // 0 without a session here
+        Integer player_id = playerIDs.get(uuid);
+        return player_id == null ? 0 : player_id;
+    }
+
+    long getFence(UUID uuid){ // 0 without a session here
+        Integer player_id = playerIDs.get(uuid);
+        LocalSession session = player_id == null ? null : sessions.get(player_id);
+        return session == null ? 0 : session.fence;
+    }
+
+    long getOpened(int player_id){
+        LocalSession session = sessions.get(player_id);
+        return session == null ? Long.MAX_VALUE : session.opened;
+    }
+
+    int size(){
+        return sessions.size();
+    }
+
+    /*
+     * Brings the registry in line with the rows read from the sessions table, sessions changed here after the read started
+     * are left alone as the read may predate the write. Sessions without a row are fenced and handed to lost. Returns how
+     * many sessions had drifted.
+     */
+    int reconcile(List<Row> rows, long readStarted, BiConsumer<UUID, Integer> lost){
+        int drift = 0;
+        Map<Integer, Row> found = new HashMap<>();
+        for (Row row : rows){
+            found.put(row.player_id, row);
+        }
+
+        for (LocalSession session : new ArrayList<>(sessions.values())){
+            if (session.changed >= readStarted){
+                continue;
+            }
+
+            Row row = found.get(session.player_id);
+            if (row == null){
+                if (sessions.remove(session.player_id, session)){
+                    logger.severe("Session for " + session.uuid + " is no longer in the database, its lease was taken over by another server");
+                    playerIDs.remove(session.uuid, session.player_id);
+                    fenced.add(session.player_id);
+                    lost.accept(session.uuid, session.player_id);
+                    drift++;
+                }
+            } else if (row.closing != session.closing || row.fence != session.fence){
+                logger.warning("Session for " + session.uuid + " differs between the database and the registry, following the database");
+                sessions.replace(session.player_id, session, new LocalSession(session.uuid, session.player_id, row.closing, row.fence, session.opened, System.currentTimeMillis()));
+                drift++;
+            }
+        }
+
+        for (Row row : rows){
+            Long released = removed.get(row.player_id);
+            if (sessions.containsKey(row.player_id) || (released != null && released >= readStarted)){
+                continue;
+            }
+
+            long now = System.currentTimeMillis();
+            if (sessions.putIfAbsent(row.player_id, new LocalSession(row.uuid, row.player_id, row.closing, row.fence, now, readStarted - 1)) == null){
+                logger.warning("Session for " + row.uuid + " is in the database but not in the registry, adding it");
+                playerIDs.put(row.uuid, row.player_id);
+                drift++;
+            }
+        }
+
+        removed.values().removeIf(released -> released < readStarted);
+        return drift;
+    }
+
+    static class Row {
+        private final UUID uuid;
+        private final int player_id;
+        private final boolean closing;
+        private final long fence;
+
+        Row(UUID uuid, int player_id, boolean closing, long fence){
+            this.uuid = uuid;
+            this.player_id = player_id;
+            this.closing = closing;
+            this.fence = fence;
+        }
+    }
+
+    private static class LocalSession {
+        private final UUID uuid;
+        private final int player_id;
+        private final boolean closing;
+        private final long fence;
+        private final long opened;
+        private final long changed;
+
+        private LocalSession(UUID uuid, int player_id, boolean closing, long fence, long opened, long changed){
+            this.uuid = uuid;
+            this.player_id = player_id;
+            this.closing = closing;
+            this.fence = fence;
+            this.opened = opened;
+            this.changed = changed;
+        }
+
+        private LocalSession withClosing(boolean closing){
+            return new LocalSession(uuid, player_id, closing, fence, opened, System.currentTimeMillis());
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
+import java.util.function.IntSupplier;
+import java.util.logging.Logger;
+
+/*
+ * Runs the closing session sweep on its own thread. The interval doubles on every sweep that finds nothing up to the
+ * max interval and drops back to the min interval as soon as closing activity is seen. Another server marking one of our
+ * sessions closing can only be seen by sweeping, so the max interval is what a handoff away from here waits at most. Only
+ * a server without sessions backs off further, to the empty interval.
+ */
+public class SessionSweeper {
+    private final IntSupplier sweep;
+    private final LatencyHistogram sweepTime;
+    private final long minInterval;
+    private final long maxInterval;
+    private final long emptyInterval;
+    private final BooleanSupplier holding;
+    private final Logger logger;
+
+    private final Object lock;
+    private final AtomicBoolean activity;
+    private final LongAdder sweepCount;
+
+    private volatile long interval;
+    private volatile boolean running;
+    private long lastSweep;
+    private Thread thread;
+
+    SessionSweeper(IntSupplier sweep, BooleanSupplier holding, long minInterval, long maxInterval, long emptyInterval, LatencyHistogram sweepTime, LongAdder sweepCount, Logger logger){
+        this.sweep = sweep;
+        this.sweepCount = sweepCount;
+        this.holding = holding;
+        this.sweepTime = sweepTime;
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(minInterval, maxInterval);
+        this.emptyInterval = Math.max(this.maxInterval, emptyInterval);
+        this.logger = logger;
+
+        this.lock = new Object();
+        this.activity = new AtomicBoolean(false);
+        this.interval = minInterval;
+    }
+
+    void start(){
+        running = true;
+        lastSweep = System.currentTimeMillis();
+
+        thread = new Thread(this::run, "SessionManager Sweeper");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    boolean stop(long timeout) throws InterruptedException {
+        running = false;
+        synchronized (lock){
+            lock.notifyAll();
+        }
+
+        thread.join(timeout);
+        return !thread.isAlive();
+    }
+
+    public void notifyActivity(){ // Sessions are changing somewhere, tighten the interval
+        synchronized (lock){
+            activity.set(true);
+            interval = minInterval;
+            lock.notifyAll();
+        }
+    }
+
+    private void run(){
+        while (running){
+            try {
+                synchronized (lock){
+                    long now = System.currentTimeMillis();
+                    while (running && now < lastSweep + interval){
+                        lock.wait(Math.min(lastSweep + interval - now, maxInterval));
+                        now = System.currentTimeMillis();
+
+                        if (interval > maxInterval && holding.getAsBoolean()){
+                            interval = maxInterval; // A session was opened while we idled
+                        }
+                    }
+                }
+            } catch (InterruptedException e){
+                return;
+            }
+
+            if (!running){
+                return;
+            }
+
+            activity.set(false);
+
+            int processed = 0;
+            long start = System.nanoTime();
+            try {
+                processed = sweep.getAsInt();
+            } catch (Exception e){
+                logger.severe("An error occurred while sweeping closed sessions");
+                e.printStackTrace();
+            }
+
+            sweepTime.recordSince(start);
+            sweepCount.increment();
+            lastSweep = System.currentTimeMillis();
+
+            if (processed > 0 || activity.get()){
+                interval = minInterval;
+            } else {
+                interval = Math.min(interval * 2, holding.getAsBoolean() ? maxInterval : emptyInterval);
+            }
+        }
+    }
+
+    public long getInterval() {
+        return interval;
+    }
+
+    public long getSweepCount() {
+        return sweepCount.sum();
+    }
+}
@@ -0,0 +1,298 @@
+package net.crashcraft.sessionmanager;
+
+import co.aikar.idb.DbRow;
+import net.crashcraft.sessionmanager.database.DatabaseLane;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Writes this servers rows in the sessions table. Writes are flushed straight away when nothing is in flight, or after
+ * the configured window, and anything queued meanwhile is coalesced into one multi-row statement per kind of write so
+ * a transfer storm costs a few statements per flush instead of one per player.
+ *
+ * A player only ever has one kind of write in a batch, a second kind for the same player waits for the next batch so
+ * their writes keep the order they were made in.
+ *
+ * Created sessions get a lease and the next fencing token of the player. Leases are renewed for every row of this server
+ * in one statement, in line with the other writes so a renewal never lands between a release and its row being gone.
+ */
+class SessionWriter {
+    private static final int MAX_BATCH = 500;
+
+    private final int server_id;
+    private final DatabaseLane lane;
+    private final long window;
+    private final int lease;
+    private final Queue<PendingWrite> queue;
+    private final AtomicBoolean flushing;
+    private final ScheduledExecutorService executor;
+    private final Map<WriteType, LongAdder> writes;
+    private final LongAdder statements;
+
+    private PendingWrite held; // Cut off the last batch, only touched by the flushing thread
+    private volatile boolean shutdown;
+
+    SessionWriter(int server_id, DatabaseLane lane, long window, int lease, SessionMetrics metrics){ // Releases and creates are on the login path, so writes run on the login lane
+        this.server_id = server_id;
+        this.lane = lane;
+        this.window = window;
+        this.lease = lease;
+        this.queue = new ConcurrentLinkedQueue<>();
+        this.flushing = new AtomicBoolean(false);
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SessionManager Writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.writes = new EnumMap<>(WriteType.class);
+        for (WriteType type : WriteType.values()){
+            writes.put(type, metrics.counter("sessionmanager_session_writes_total", "type", type.name().toLowerCase()));
+        }
+        this.statements = metrics.counter("sessionmanager_session_write_statements_total");
+    }
+
+    /*
+     * Creates the session if it does not exist yet, completes with its fencing token
+     */
+    CompletableFuture<Long> create(int player_id){
+        PendingWrite write = submit(WriteType.CREATE, player_id);
+        return write.future.thenApply(ignored -> write.fence);
+    }
+
+    /*
+     * Completes with false when this server no longer holds the session, its row was taken over by another server
+     */
+    CompletableFuture<Boolean> markClosing(int player_id){
+        PendingWrite write = submit(WriteType.CLOSE, player_id);
+        return write.future.thenApply(ignored -> write.held);
+    }
+
+    CompletableFuture<Void> release(int player_id){
+        return submit(WriteType.RELEASE, player_id).future;
+    }
+
+    /*
+     * Extends the lease of every session of this server by the given seconds, completes with how many were renewed
+     */
+    CompletableFuture<Integer> renew(int seconds){
+        CompletableFuture<Integer> future = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    future.complete(lane.query("renew_leases", db -> db.executeUpdate("UPDATE sessions SET lease_until = TIMESTAMPADD(SECOND, ?, NOW()) WHERE server_id = ?;", seconds, server_id)));
+                } catch (SQLException e){
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e){
+            future.completeExceptionally(shutDown());
+        }
+        return future;
+    }
+
+    /*
+     * Writes already queued are still flushed, anything submitted afterwards fails with an SQLException
+     */
+    void shutdown(long timeout) throws InterruptedException {
+        shutdown = true;
+        executor.shutdown();
+        executor.awaitTermination(timeout, TimeUnit.MILLISECONDS);
+    }
+
+    private PendingWrite submit(WriteType type, int player_id){
+        PendingWrite write = new PendingWrite(type, player_id);
+        if (shutdown){ // A quit or a sweep racing the shutdown
+            write.future.completeExceptionally(shutDown());
+            return write;
+        }
+
+        queue.add(write);
+        schedule();
+        return write;
+    }
+
+    private void schedule(){
+        if (flushing.compareAndSet(false, true)){
+            try {
+                if (window > 0){
+                    executor.schedule(this::flush, window, TimeUnit.MILLISECONDS);
+                } else {
+                    executor.execute(this::flush);
+                }
+            } catch (RejectedExecutionException e){
+                failQueued();
+            }
+        }
+    }
+
+    /*
+     * The executor is gone, nothing queued will ever be written
+     */
+    private void failQueued(){
+        SQLException e = shutDown();
+        if (held != null){
+            held.future.completeExceptionally(e);
+            held = null;
+        }
+
+        PendingWrite write;
+        while ((write = queue.poll()) != null){
+            write.future.completeExceptionally(e);
+        }
+        flushing.set(false);
+    }
+
+    private static SQLException shutDown(){
+        return new SQLException("The session writer is shut down");
+    }
+
+    private void flush(){
+        try {
+            Map<WriteType, List<PendingWrite>> batch = new EnumMap<>(WriteType.class);
+            Map<Integer, WriteType> players = new HashMap<>();
+            while (true){
+                int size = 0;
+                while (size < MAX_BATCH){
+                    PendingWrite write = held != null ? held : queue.poll();
+                    held = null;
+                    if (write == null){
+                        break;
+                    }
+
+                    WriteType previous = players.putIfAbsent(write.player_id, write.type);
+                    if (previous != null && previous != write.type){
+                        held = write;
+                        break;
+                    }
+
+                    batch.computeIfAbsent(write.type, k -> new ArrayList<>()).add(write);
+                    size++;
+                }
+
+                if (size == 0){
+                    return;
+                }
+
+                for (Map.Entry<WriteType, List<PendingWrite>> entry : batch.entrySet()){
+                    write(entry.getKey(), entry.getValue());
+                }
+
+                batch.clear();
+                players.clear();
+            }
+        } finally {
+            flushing.set(false);
+            if (held != null || !queue.isEmpty()){
+                schedule(); // Something was queued after the last poll
+            }
+        }
+    }
+
+    private void write(WriteType type, List<PendingWrite> batch){
+        try {
+            List<Object> params = new ArrayList<>(batch.size() * 2 + 1);
+            if (type == WriteType.CREATE){
+                List<Object> ids = new ArrayList<>(batch.size());
+                for (PendingWrite pending : batch){
+                    ids.add(pending.player_id);
+                }
+
+                String in = String.join(", ", Collections.nCopies(ids.size(), "?"));
+                params.add(server_id);
+                params.add(lease);
+                params.addAll(ids);
+
+                int created = lane.query("create_session", db -> db.executeUpdate("INSERT IGNORE INTO sessions (player_id, server_id, isclosing, lease_until, fence) " +
+                        "SELECT id, ?, 0, TIMESTAMPADD(SECOND, ?, NOW()), fence + 1 FROM players WHERE id IN (" + in + ");", params.toArray()));
+
+                if (created > 0){ // Only the players whose session was inserted move on to the next fence
+                    List<Object> bump = new ArrayList<>(ids);
+                    bump.add(server_id);
+                    lane.query("bump_fence", db -> db.executeUpdate("UPDATE players SET fence = fence + 1 WHERE id IN (" + in + ") " +
+                            "AND fence < (SELECT s.fence FROM sessions s WHERE s.player_id = players.id AND s.server_id = ?);", bump.toArray()));
+                }
+
+                ids.add(0, server_id);
+                Map<Integer, Long> fences = new HashMap<>();
+                for (DbRow row : lane.query("session_fences", db -> db.getResults("SELECT player_id, fence FROM sessions WHERE server_id = ? AND player_id IN (" + in + ");", ids.toArray()))){
+                    fences.put(row.getInt("player_id"), ((Number) row.get("fence")).longValue());
+                }
+                for (PendingWrite pending : batch){
+                    pending.fence = fences.getOrDefault(pending.player_id, 0L);
+                }
+            } else {
+                params.add(server_id);
+                for (PendingWrite pending : batch){
+                    params.add(pending.player_id);
+                }
+
+                String in = String.join(", ", Collections.nCopies(batch.size(), "?"));
+                if (type == WriteType.CLOSE){
+                    int marked = lane.query("mark_closing", db -> db.executeUpdate("UPDATE sessions SET isclosing = 1 WHERE server_id = ? AND player_id IN (" + in + ");", params.toArray()));
+                    if (marked < batch.size()){ // Some rows are gone, find out whose
+                        Set<Integer> held = new HashSet<>();
+                        for (DbRow row : lane.query("held_sessions", db -> db.getResults("SELECT player_id FROM sessions WHERE server_id = ? AND player_id IN (" + in + ");", params.toArray()))){
+                            held.add(row.getInt("player_id"));
+                        }
+                        for (PendingWrite pending : batch){
+                            pending.held = held.contains(pending.player_id);
+                        }
+                    }
+                } else {
+                    lane.query("release_sessions", db -> db.executeUpdate("DELETE FROM sessions WHERE server_id = ? AND player_id IN (" + in + ");", params.toArray()));
+                }
+            }
+
+            for (PendingWrite pending : batch){
+                pending.future.complete(null);
+            }
+        } catch (SQLException e){
+            for (PendingWrite pending : batch){
+                pending.future.completeExceptionally(e);
+            }
+        }
+
+        writes.get(type).add(batch.size());
+        statements.increment();
+    }
+
+    private enum WriteType {
+        CREATE,
+        CLOSE,
+        RELEASE
+    }
+
+    private static class PendingWrite {
+        private final WriteType type;
+        private final int player_id;
+        private final CompletableFuture<Void> future;
+
+        private volatile long fence; // Set for creates before the future completes
+        private volatile boolean held = true; // Cleared for closes whose row was gone
+
+        private PendingWrite(WriteType type, int player_id){
+            this.type = type;
+            this.player_id = player_id;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.cache.MainThreadQueue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/*
+ * Closes every session left when the server shuts down. Sessions are closed in parallel on a bounded pool, the players
+ * online the longest first as they have the most to lose, while the main thread runs the main thread queue for them and
+ * reports progress. Only sessions whose dependencies all finished writing count as flushed, the rest are left for the
+ * caller to keep for recovery.
+ */
+class ShutdownFlush {
+    private static final long PROGRESS_INTERVAL = 5000;
+    private static final long DRAIN_INTERVAL = 10;
+
+    private final DependencyGraph dependencies;
+    private final MainThreadQueue mainThread;
+    private final int workers;
+    private final Logger logger;
+
+    ShutdownFlush(DependencyGraph dependencies, MainThreadQueue mainThread, int workers, Logger logger){
+        this.dependencies = dependencies;
+        this.mainThread = mainThread;
+        this.workers = workers;
+        this.logger = logger;
+    }
+
+    /*
+     * Returns the sessions that were flushed, in the order they finished. Call it from the main thread.
+     */
+    List<Session> flush(List<Session> sessions, long deadline) throws InterruptedException{
+        sessions.sort(Comparator.comparingLong(Session::getOpened));
+
+        Queue<Session> flushed = new ConcurrentLinkedQueue<>();
+        CountDownLatch latch = new CountDownLatch(sessions.size());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(workers, sessions.size())), r -> {
+            Thread thread = new Thread(r, "SessionManager Shutdown");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        for (Session session : sessions){ // The queue is FIFO so the longest online are picked up first
+            executor.execute(() -> {
+                try {
+                    if (dependencies.closeForShutdown(session.getUuid())){
+                        flushed.add(session);
+                    }
+                } catch (InterruptedException e){
+                    Thread.currentThread().interrupt(); // Missed the deadline
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        executor.shutdown();
+
+        long progress = System.currentTimeMillis() + PROGRESS_INTERVAL;
+        while (true){
+            mainThread.runPending(); // Nothing else runs the queue while the main thread is in here
+
+            long now = System.currentTimeMillis();
+            if (now >= deadline || latch.await(Math.min(DRAIN_INTERVAL, deadline - now), TimeUnit.MILLISECONDS)){
+                break;
+            }
+
+            if (now >= progress){
+                logger.info("Flushed " + (sessions.size() - latch.getCount()) + "/" + sessions.size() + " sessions, "
+                        + Math.max(0, (deadline - now) / 1000) + "s until the shutdown deadline");
+                progress = now + PROGRESS_INTERVAL;
+            }
+        }
+        executor.shutdownNow(); // Whatever is still running has missed the deadline
+
+        return new ArrayList<>(flushed);
+    }
+
+    static class Session {
+        private final UUID uuid;
+        private final int playerID;
+        private final long opened;
+
+        Session(UUID uuid, int playerID, long opened){
+            this.uuid = uuid;
+            this.playerID = playerID;
+            this.opened = opened;
+        }
+
+        UUID getUuid(){
+            return uuid;
+        }
+
+        int getPlayerID(){
+            return playerID;
+        }
+
+        long getOpened(){
+            return opened;
+        }
+    }
+}
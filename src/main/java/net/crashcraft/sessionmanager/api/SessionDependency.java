@@ -11,4 +11,31 @@ public abstract class SessionDependency {
     public CompletableFuture<Void> onSessionCloseWithFuture(UUID player){
         return null;
     }
+
+    /*
+     * Called for every session left when the server shuts down, in place of the close calls. The main thread is blocked
+     * running the flush, work handed to the MainThreadQueue is still run while it waits but Bukkit tasks are not. The
+     * future completes once the players data is written, a session whose future fails or misses the deadline is kept for
+     * recovery on the next start.
+     */
+    public CompletableFuture<Void> onSessionShutdown(UUID player){
+        onSessionClose(player);
+        return onSessionCloseWithFuture(player);
+    }
+
+    public void onSessionFenced(UUID player){ // Another server took the session over after this one lost its lease, drop what is held for the player without saving it
+
+    }
+
+    /*
+     * Completes once what was held for the fenced player is dropped, for dependencies that drop it later on
+     */
+    public CompletableFuture<Void> onSessionFencedWithFuture(UUID player){
+        onSessionFenced(player);
+        return null;
+    }
+
+    public void onSessionIntent(UUID player){ // The proxy is moving the player here, their session may still be open elsewhere so only read what it never writes
+
+    }
 }
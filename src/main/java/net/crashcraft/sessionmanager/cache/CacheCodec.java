@@ -0,0 +1,13 @@
+package net.crashcraft.sessionmanager.cache;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public interface CacheCodec<T extends CachedData> {
+    int getVersion(); // Bump whenever the layout changes, state written with another version is never read back
+
+    void write(T data, DataOutput out) throws IOException;
+
+    void read(T data, DataInput in) throws IOException; // Fills in a fresh object from createCacheObject
+}
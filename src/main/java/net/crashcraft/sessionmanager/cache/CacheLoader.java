@@ -15,4 +15,8 @@ public @interface CacheLoader {
     ExecutionType thread() default ExecutionType.SYNC;
 
     boolean suppressWarnings() default false;
+
+    int order() default 0; // Hooks of the same type and thread run in ascending order, ties are broken by name
+
+    boolean prefetch() default false; // Async LOAD hooks reading only what a session never writes, started early on a proxy intent
 }
@@ -8,4 +8,12 @@ public interface CacheManager<T extends CachedData> {
     int getThreadCount();
 
     T createCacheObject(UUID uuid);
+
+    default CacheCodec<T> getCodec(){ // Needed to journal unsaved state for crash recovery
+        return null;
+    }
+
+    default long estimateSize(T data){ // Heap bytes held by an entry for the cache footprint metrics, below 0 estimates from the codec and fields
+        return -1;
+    }
 }
@@ -1,12 +1,35 @@
 package net.crashcraft.sessionmanager.cache;
 
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CachedData {
     public UUID uuid;
 
+    private final transient AtomicBoolean dirty;
+    private final transient AtomicBoolean journal;
+
     public CachedData(UUID uuid){
         this.uuid = uuid;
+        this.dirty = new AtomicBoolean(false);
+        this.journal = new AtomicBoolean(false);
+    }
+
+    public void markDirty(){ // Call after changing anything the SAVE hooks persist
+        dirty.set(true);
+        journal.set(true);
+    }
+
+    public boolean isDirty(){
+        return dirty.get();
+    }
+
+    boolean consumeDirty(){
+        return dirty.getAndSet(false);
+    }
+
+    boolean consumeJournal(){
+        return journal.getAndSet(false);
     }
 
     @CacheLoader(name = "onTest", type = LoadType.LOAD, thread = ExecutionType.ASYNC)
@@ -0,0 +1,99 @@
+package net.crashcraft.sessionmanager.cache;
+
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+ * Hooks are bound to method handles once and kept in a fixed order, dispatch does no access checks or argument boxing.
+ * Exceptions thrown by a hook are still wrapped in an InvocationTargetException like Method.invoke would.
+ */
+final class HookDispatcher {
+    private static final MethodType HOOK_TYPE = MethodType.methodType(void.class, Object.class);
+
+    static final Comparator<Method> ORDER = Comparator
+            .comparingInt((Method method) -> method.getDeclaredAnnotation(CacheLoader.class).order())
+            .thenComparing(method -> method.getDeclaredAnnotation(CacheLoader.class).name())
+            .thenComparing(Method::getName);
+
+    private final MethodHandle[] handles;
+    private final LatencyHistogram[] timers;
+
+    private HookDispatcher(MethodHandle[] handles, LatencyHistogram[] timers){
+        this.handles = handles;
+        this.timers = timers;
+    }
+
+    static HookDispatcher bind(List<Method> methods) throws IllegalAccessException {
+        return bind(methods, null);
+    }
+
+    /*
+     * With metrics every hook is timed under sessionmanager_hook_seconds with the given labels and its name
+     */
+    static HookDispatcher bind(List<Method> methods, SessionMetrics metrics, String... labels) throws IllegalAccessException {
+        List<Method> sorted = new ArrayList<>(methods);
+        sorted.sort(ORDER);
+
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle[] handles = new MethodHandle[sorted.size()];
+        LatencyHistogram[] timers = metrics == null ? null : new LatencyHistogram[sorted.size()];
+
+        for (int x = 0; x < handles.length; x++){
+            Method method = sorted.get(x);
+            method.setAccessible(true);
+
+            handles[x] = lookup.unreflect(method).asType(HOOK_TYPE);
+
+            if (timers != null){
+                String[] hookLabels = Arrays.copyOf(labels, labels.length + 2);
+                hookLabels[labels.length] = "hook";
+                hookLabels[labels.length + 1] = method.getDeclaredAnnotation(CacheLoader.class).name();
+                timers[x] = metrics.histogram("sessionmanager_hook_seconds", hookLabels);
+            }
+        }
+
+        return new HookDispatcher(handles, timers);
+    }
+
+    boolean isEmpty(){
+        return handles.length == 0;
+    }
+
+    void invoke(Object data) throws InvocationTargetException {
+        if (timers != null){
+            invokeTimed(data);
+            return;
+        }
+
+        for (MethodHandle handle : handles){
+            try {
+                handle.invokeExact(data);
+            } catch (Throwable t){
+                throw new InvocationTargetException(t);
+            }
+        }
+    }
+
+    private void invokeTimed(Object data) throws InvocationTargetException {
+        for (int x = 0; x < handles.length; x++){
+            long start = System.nanoTime();
+            try {
+                handles[x].invokeExact(data);
+            } catch (Throwable t){
+                throw new InvocationTargetException(t);
+            } finally {
+                timers[x].recordSince(start);
+            }
+        }
+    }
+}
@@ -3,5 +3,6 @@ package net.crashcraft.sessionmanager.cache;
 public enum LoadType {
     LOAD,
     UNLOAD,
-    LOGIN
+    LOGIN,
+    SAVE // Persists the entry, run by the write behind flusher for dirty entries and on unload
 }
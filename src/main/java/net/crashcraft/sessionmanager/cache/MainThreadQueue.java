@@ -0,0 +1,126 @@
+package net.crashcraft.sessionmanager.cache;
+
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.Plugin;
+
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Runs the SYNC cache hooks of every cache in one main thread task per tick, for as long as the tick budget allows. What
+ * does not fit is carried over to the next tick so a join or leave storm spreads out instead of dropping TPS. Unload work
+ * always goes first as another server may be waiting on the session. At least one task runs every tick.
+ */
+public class MainThreadQueue {
+    private final Plugin plugin;
+    private final long budget;
+    private final Logger logger;
+    private final Queue<Task> unloads;
+    private final Queue<Task> tasks;
+    private final AtomicInteger depth;
+    private final AtomicBoolean scheduled;
+    private final LatencyHistogram tickTime;
+
+    public MainThreadQueue(Plugin plugin, long budgetMillis, SessionMetrics metrics){
+        this.plugin = plugin;
+        this.budget = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        this.logger = plugin.getLogger();
+        this.unloads = new ConcurrentLinkedQueue<>();
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.depth = new AtomicInteger();
+        this.scheduled = new AtomicBoolean();
+        this.tickTime = metrics.histogram("sessionmanager_sync_tick_seconds");
+
+        metrics.gauge("sessionmanager_sync_queue_depth", depth::get);
+    }
+
+    /*
+     * The future completes once the task has run on the main thread. While the plugin is disabled, which it already is
+     * during onDisable, nothing is scheduled and only runPending runs the task.
+     */
+    public CompletableFuture<Void> submit(Runnable task, boolean unload){
+        Task queued = new Task(task);
+        depth.incrementAndGet();
+        (unload ? unloads : tasks).add(queued);
+
+        if (plugin.isEnabled() && scheduled.compareAndSet(false, true)){
+            Bukkit.getScheduler().runTask(plugin, this::drain);
+        }
+        return queued.future;
+    }
+
+    /*
+     * Runs everything queued right now on the calling thread regardless of the budget, for the shutdown flush which blocks
+     * the main thread the scheduled drain would run on. Only call it from the main thread.
+     */
+    public void runPending(){
+        Task task;
+        while ((task = poll()) != null){
+            run(task);
+        }
+    }
+
+    private void drain(){
+        long start = System.nanoTime();
+
+        do {
+            Task task = poll();
+            if (task == null){
+                break;
+            }
+
+            run(task);
+        } while (System.nanoTime() - start < budget);
+
+        tickTime.recordSince(start);
+
+        if (depth.get() > 0 && plugin.isEnabled()){
+            Bukkit.getScheduler().runTask(plugin, this::drain); // Next tick
+            return;
+        }
+
+        scheduled.set(false);
+        if (depth.get() > 0 && plugin.isEnabled() && scheduled.compareAndSet(false, true)){ // Submitted while we were finishing up
+            Bukkit.getScheduler().runTask(plugin, this::drain);
+        }
+    }
+
+    private Task poll(){
+        Task task = unloads.poll();
+        if (task == null){
+            task = tasks.poll();
+        }
+        if (task != null){
+            depth.decrementAndGet();
+        }
+        return task;
+    }
+
+    private void run(Task task){
+        try {
+            task.task.run();
+        } catch (Exception e){
+            logger.log(Level.SEVERE, "A main thread cache task failed", e);
+        } finally {
+            task.future.complete(null);
+        }
+    }
+
+    private static class Task {
+        private final Runnable task;
+        private final CompletableFuture<Void> future;
+
+        private Task(Runnable task){
+            this.task = task;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
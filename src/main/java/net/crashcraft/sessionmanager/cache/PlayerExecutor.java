@@ -0,0 +1,140 @@
+package net.crashcraft.sessionmanager.cache;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Runs async cache work in order per player on a shared pool. A players next task only starts once the future returned
+ * by the one before completes, so their LOAD, LOGIN and UNLOAD hooks can never overtake each other while different
+ * players run in parallel. A player only holds a queue while they have work waiting.
+ */
+class PlayerExecutor {
+    private final ExecutorService pool;
+    private final Map<UUID, Lane> lanes;
+    private final Logger logger;
+
+    PlayerExecutor(String name, int threads, Logger logger){
+        this.logger = logger;
+        this.lanes = new ConcurrentHashMap<>();
+        this.pool = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread thread = new Thread(r, "SessionCache " + name + " Worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    void execute(UUID uuid, Runnable task){
+        submit(uuid, () -> {
+            task.run();
+            return null;
+        });
+    }
+
+    /*
+     * Runs on the pool outside of any players order, for the tail of a task that still holds its lane
+     */
+    void executeUnordered(Runnable task){
+        pool.execute(task);
+    }
+
+    /*
+     * The future completes with the result of the one the task returns, a null return finishes the task right away
+     */
+    <R> CompletableFuture<R> submit(UUID uuid, Supplier<CompletableFuture<R>> task){
+        CompletableFuture<R> result = new CompletableFuture<>();
+        Step step = () -> {
+            CompletableFuture<R> future;
+            try {
+                future = task.get();
+            } catch (Throwable t){
+                result.completeExceptionally(t);
+                throw t;
+            }
+
+            if (future == null){
+                result.complete(null);
+                return null;
+            }
+
+            return future.whenComplete((value, e) -> {
+                if (e != null){
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+        };
+
+        while (true){
+            Lane lane = lanes.computeIfAbsent(uuid, Lane::new);
+            synchronized (lane){
+                if (lane.retired){
+                    continue; // Emptied and dropped meanwhile, start a new one
+                }
+
+                lane.steps.add(step);
+                if (!lane.running){
+                    lane.running = true;
+                    pool.execute(lane);
+                }
+            }
+            return result;
+        }
+    }
+
+    private interface Step {
+        CompletableFuture<?> run();
+    }
+
+    private class Lane implements Runnable {
+        private final UUID uuid;
+        private final Queue<Step> steps;
+
+        private boolean running;
+        private boolean retired;
+
+        private Lane(UUID uuid){
+            this.uuid = uuid;
+            this.steps = new ArrayDeque<>();
+        }
+
+        /*
+         * One step per turn on the pool so a player with a long queue can not starve the others
+         */
+        @Override
+        public void run(){
+            Step step;
+            synchronized (this){
+                step = steps.poll();
+                if (step == null){
+                    running = false;
+                    retired = true;
+                    lanes.remove(uuid, this);
+                    return;
+                }
+            }
+
+            CompletableFuture<?> future = null;
+            try {
+                future = step.run();
+            } catch (Throwable t){
+                logger.log(Level.SEVERE, "Cache task failed for " + uuid, t);
+            }
+
+            if (future == null || future.isDone()){
+                pool.execute(this);
+            } else {
+                future.whenComplete((ignored, e) -> pool.execute(this)); // Holds the player until main thread work is done too
+            }
+        }
+    }
+}
@@ -1,76 +1,279 @@
 package net.crashcraft.sessionmanager.cache;
 
-import co.aikar.idb.DB;
 import co.aikar.idb.DbRow;
-import org.bukkit.Bukkit;
-import org.bukkit.plugin.java.JavaPlugin;
+import net.crashcraft.sessionmanager.database.DatabaseLane;
+import net.crashcraft.sessionmanager.database.UuidCodec;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
 
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
 
+/*
+ * Lets other services ask for a players cache to be saved or reloaded without closing their session, by inserting into
+ * session_remote_requests:
+ *
+ * INSERT INTO session_remote_requests (uuid, cache, action, hook) VALUES ('<uuid>', '<cache name>', 'save', NULL);
+ *
+ * The action is save or load and runs the SAVE or LOAD hooks, only the ones with the given CacheLoader name unless hook
+ * is NULL. Every server reads the requests past its cursor, runs the ones for players it holds in batches and deletes
+ * them, requests for players held elsewhere are left for that server. Polling backs off while nothing is requested and
+ * unclaimed requests are purged after the expiry.
+ *
+ * Ids the cursor skipped over are read again for a while, concurrent inserters can commit out of AUTO_INCREMENT order.
+ * Requests whose hooks failed stay in the table and are run again on the next polls, up to MAX_ATTEMPTS times.
+ */
 public class RemoteSaveManager {
-    /*
-    private JavaPlugin plugin;
-    private int cacheID;
-    private SessionCache<?> cache;
+    private static final int MAX_BATCH = 500;
+    private static final long PURGE_INTERVAL = 60000;
+    private static final int MAX_GAPS = 1000;
+    private static final long GAP_WINDOW = 30000;
+    private static final int MAX_ATTEMPTS = 5;
 
-    private ArrayList<Integer> alreadySavedID;
-    private ArrayList<Integer> alreadySavedID;
+    private final DatabaseLane lane;
+    private final long minInterval;
+    private final long maxInterval;
+    private final int expiry;
+    private final Logger logger;
+    private final Map<String, SessionCache<?>> caches;
+    private final LongAdder handled;
+    private final Map<Long, Long> gaps; // Ids below the cursor that were not committed yet, to when they were skipped
+    private final Map<Long, Integer> retries; // Failed requests, to how often they were run
 
-    public RemoteSaveManager(JavaPlugin plugin, SessionCache<?> cache) {
-        this.plugin = plugin;
-        this.cache = cache;
+    private ScheduledExecutorService executor;
+    private long cursor;
+    private volatile long interval;
+    private long lastPurge;
 
-        try {
-            cacheID = DB.getFirstColumn("SELECT id FROM session_caches WHERE `name` = ?", cache.getCacheManager().getCacheName());
-        } catch (SQLException e){
-            e.printStackTrace();
-            plugin.getLogger().severe("Remote save not enabled for cache. " + cache.getCacheManager().getCacheName());
+    public RemoteSaveManager(DatabaseLane lane, long minInterval, long maxInterval, int expiry, SessionMetrics metrics, Logger logger){
+        this.lane = lane;
+        this.minInterval = minInterval;
+        this.maxInterval = Math.max(minInterval, maxInterval);
+        this.expiry = expiry;
+        this.logger = logger;
+        this.caches = new ConcurrentHashMap<>();
+        this.handled = metrics.counter("sessionmanager_remote_requests_total");
+        this.gaps = new HashMap<>();
+        this.retries = new HashMap<>();
+        this.interval = minInterval;
+
+        metrics.gauge("sessionmanager_remote_poll_interval_ms", () -> interval);
+    }
+
+    synchronized void register(SessionCache<?> cache) throws SQLException {
+        caches.put(cache.getCacheManager().getCacheName(), cache);
+
+        if (executor != null){
             return;
         }
 
-        Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::checkRemote, 20, 20);
+        lane.getDatabase().executeUpdate("CREATE TABLE IF NOT EXISTS session_remote_requests (" +
+                "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                "uuid VARBINARY(36) NOT NULL, " +
+                "cache VARCHAR(64) NOT NULL, " +
+                "action VARCHAR(16) NOT NULL, " +
+                "hook VARCHAR(64) NULL, " +
+                "created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                "INDEX (created));");
+
+        Number max = lane.getDatabase().getFirstColumn("SELECT COALESCE(MAX(id), 0) FROM session_remote_requests;");
+        cursor = max == null ? 0 : max.longValue(); // Nobody is online here yet, anything older is for other servers
+        lastPurge = System.currentTimeMillis();
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SessionManager Remote Requests");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.schedule(this::poll, interval, TimeUnit.MILLISECONDS);
     }
 
-    private void checkRemote(){
+    public synchronized void shutdown(){
+        if (executor != null){
+            executor.shutdownNow();
+        }
+    }
+
+    private void poll(){
+        int found = 0;
         try {
-            for (DbRow row : DB.getResults("SELECT player_id, method, (SELECT uuid FROM players WHERE id = player_id) AS uuid FROM session_remotesave WHERE `cache` = ?", cacheID)){
-                UUID uuid = UUID.fromString(row.getString("uuid"));
-                String method = row.getString("method");
-
-                if (!cache.getCache().containsKey(uuid)){
-                    continue;
-                }
-
-                Object data = cache.getCachedData(uuid);
-
-                Method sync = cache.getSyncLoadMethodMap().get(method);
-                Method async = cache.getAsyncLoadMethodMap().get(method);
-
-                if (sync != null) {
-                    Bukkit.getScheduler().runTask(plugin, () -> {
-                        try {
-                            sync.invoke(data);
-                        } catch (IllegalAccessException | InvocationTargetException e) {
-                            e.printStackTrace();
-                        }
-                    });
-                }
-                if (async != null) {
-                    try {
-                        async.invoke(data);
-                    } catch (IllegalAccessException | InvocationTargetException e) {
-                        e.printStackTrace();
-                    }
-                }
-            }
-        } catch (SQLException e) {
+            found = process();
+        } catch (Exception e){
+            logger.severe("An error occurred while processing remote cache requests");
             e.printStackTrace();
         }
+
+        if (found >= MAX_BATCH){
+            interval = 0; // Still behind, keep reading
+        } else if (found > 0 || !retries.isEmpty()){
+            interval = minInterval;
+        } else {
+            interval = Math.min(Math.max(interval * 2, minInterval), maxInterval);
+        }
+
+        if (System.currentTimeMillis() - lastPurge >= PURGE_INTERVAL){
+            lastPurge = System.currentTimeMillis();
+            purge();
+        }
+
+        if (!executor.isShutdown()){
+            executor.schedule(this::poll, interval, TimeUnit.MILLISECONDS);
+        }
     }
 
+    /*
+     * Runs the requests past the cursor and the ones behind it that are still owed, returns how many new rows were read
      */
+    private int process() throws SQLException {
+        long now = System.currentTimeMillis();
+        gaps.values().removeIf(skipped -> now - skipped > GAP_WINDOW);
+
+        List<DbRow> behind = Collections.emptyList();
+        List<Object> owed = new ArrayList<>(gaps.keySet());
+        owed.addAll(retries.keySet());
+        if (!owed.isEmpty()){
+            String in = String.join(", ", Collections.nCopies(owed.size(), "?"));
+            behind = lane.query("remote_retry", db -> db.getResults("SELECT id, uuid, cache, action, hook FROM session_remote_requests WHERE id IN (" + in + ");", owed.toArray()));
+        }
+
+        List<DbRow> rows = lane.query("remote_poll", db -> db.getResults("SELECT id, uuid, cache, action, hook FROM session_remote_requests WHERE id > ? ORDER BY id LIMIT " + MAX_BATCH + ";", cursor));
+
+        List<Long> seen = new ArrayList<>();
+        for (DbRow row : behind){
+            seen.add(row.getLong("id"));
+        }
+        gaps.keySet().removeAll(seen);
+
+        for (DbRow row : rows){
+            long id = row.getLong("id");
+            for (long skipped = cursor + 1; skipped < id && gaps.size() < MAX_GAPS; skipped++){
+                gaps.put(skipped, now);
+            }
+            cursor = id;
+        }
+
+        List<DbRow> pending = new ArrayList<>(behind);
+        pending.addAll(rows);
+        if (pending.isEmpty()){
+            return 0;
+        }
+
+        Map<SessionCache<?>, List<Request>> batches = new HashMap<>();
+        List<Long> done = new ArrayList<>();
+        Queue<Long> failed = new ConcurrentLinkedQueue<>();
+
+        for (DbRow row : pending){
+            long id = row.getLong("id");
+
+            SessionCache<?> cache = caches.get(row.getString("cache"));
+            if (cache == null){
+                continue; // A cache this server does not have
+            }
+
+            LoadType type = parseAction(row.getString("action"));
+            if (type == null){
+                logger.warning("Dropping remote request " + id + " with unknown action " + row.getString("action") + ", expected save or load");
+                done.add(id);
+                continue;
+            }
+
+            batches.computeIfAbsent(cache, k -> new ArrayList<>())
+                    .add(new Request(id, UuidCodec.decode(row.get("uuid")), type, row.getString("hook")));
+        }
+
+        List<CompletableFuture<List<Long>>> running = new ArrayList<>();
+        for (Map.Entry<SessionCache<?>, List<Request>> batch : batches.entrySet()){
+            running.add(batch.getKey().runRemote(batch.getValue(), failed));
+        }
+
+        for (CompletableFuture<List<Long>> future : running){
+            done.addAll(future.join());
+        }
+
+        Map<Long, Integer> attempted = new HashMap<>(retries);
+        retries.clear(); // Only the ones that failed again are owed, the rest ran, moved away or were purged
+        for (Long id : failed){
+            int attempts = attempted.getOrDefault(id, 0) + 1;
+            if (attempts >= MAX_ATTEMPTS){
+                logger.severe("Giving up on remote request " + id + " after " + attempts + " failed attempts, it is purged after the expiry");
+            } else {
+                retries.put(id, attempts);
+            }
+        }
+
+        if (!done.isEmpty()){
+            String in = String.join(", ", Collections.nCopies(done.size(), "?"));
+            lane.query("remote_ack", db -> db.executeUpdate("DELETE FROM session_remote_requests WHERE id IN (" + in + ");", done.toArray()));
+            handled.add(done.size());
+        }
+
+        return rows.size();
+    }
+
+    private void purge(){
+        try {
+            lane.query("remote_purge", db -> db.executeUpdate("DELETE FROM session_remote_requests WHERE created < TIMESTAMPADD(SECOND, ?, NOW());", -expiry));
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+
+    private static LoadType parseAction(String action){
+        if (action == null){
+            return null;
+        }
+
+        switch (action.toLowerCase()){
+            case "save":
+                return LoadType.SAVE;
+            case "load":
+            case "reload":
+                return LoadType.LOAD;
+            default:
+                return null;
+        }
+    }
+
+    static class Request {
+        private final long id;
+        private final UUID uuid;
+        private final LoadType type;
+        private final String hook; // Null runs every hook of the type
+
+        private Request(long id, UUID uuid, LoadType type, String hook){
+            this.id = id;
+            this.uuid = uuid;
+            this.type = type;
+            this.hook = hook;
+        }
+
+        long getId(){
+            return id;
+        }
+
+        UUID getUuid(){
+            return uuid;
+        }
+
+        LoadType getType(){
+            return type;
+        }
+
+        String getHook(){
+            return hook;
+        }
+    }
 }
@@ -3,6 +3,11 @@ package net.crashcraft.sessionmanager.cache;
 import com.google.common.util.concurrent.Futures;
 import net.crashcraft.sessionmanager.SessionManager;
 import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.config.GlobalConfig;
+import net.crashcraft.sessionmanager.database.BackgroundThrottle;
+import net.crashcraft.sessionmanager.journal.JournalState;
+import net.crashcraft.sessionmanager.journal.SessionJournal;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
 import org.bukkit.Bukkit;
 import org.bukkit.OfflinePlayer;
 import org.bukkit.event.EventHandler;
@@ -11,50 +16,113 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.player.AsyncPlayerPreLoginEvent;
 import org.bukkit.event.player.PlayerJoinEvent;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
 import org.cache2k.configuration.Cache2kConfiguration;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 public class SessionCache<T extends CachedData> extends SessionDependency implements Listener {
     private final boolean DEBUG;
 
     private final JavaPlugin plugin;
+    private final SessionManager sessionManager;
     private final Logger logger;
     private final Cache<UUID, T> cache;
     private final CacheManager<T> cacheManager;
 
-    private final Set<Method> syncLoadMethods;
-    private final Set<Method> asyncLoadMethods;
+    private final HookDispatcher syncLoadMethods;
+    private final HookDispatcher asyncLoadMethods;
+    private final HookDispatcher prefetchLoadMethods; // The async LOAD hooks safe to run on an intent
+    private final HookDispatcher remainingLoadMethods; // and the rest, run once the session is acquired
 
-    private final Set<Method> syncUnLoadMethods;
-    private final Set<Method> asyncUnLoadMethods;
+    private final HookDispatcher syncUnLoadMethods;
+    private final HookDispatcher asyncUnLoadMethods;
 
-    private final Set<Method> syncLoginMethods;
-    private final Set<Method> asyncLoginMethods;
+    private final HookDispatcher syncLoginMethods;
+    private final HookDispatcher asyncLoginMethods;
+
+    private final HookDispatcher syncSaveMethods;
+    private final HookDispatcher asyncSaveMethods;
+
+    private final SessionMetrics metrics;
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder loads;
+
+    private final CacheCodec<T> codec;
+    private final SessionJournal journal;
+    private final BackgroundThrottle throttle;
+
+    private volatile boolean writeBehind;
+    private int writeBehindBatch;
+    private BukkitTask flushTask;
+
+    private final Map<UUID, CompletableFuture<Void>> unloading;
+    private final PlayerExecutor players; // Orders each players LOAD, LOGIN and UNLOAD work
+    private final MainThreadQueue mainThread;
+
+    private final Cache<UUID, T> offlineCache; // Read only copies of players without a session here, never saved or unloaded
+    private final Map<UUID, CompletableFuture<T>> offlineLoads;
+    private final Map<UUID, CompletableFuture<T>> loading; // Session loads in flight until their entry is put
+    private final LongAdder offlineHits;
+
+    private final SnapshotStore snapshotStore;
+    private final LongAdder snapshotHits;
+    private final LongAdder snapshotMisses;
+    private volatile boolean snapshots;
+
+    private final List<Method> hooks;
+    private final Map<String, HookDispatcher> namedHooks; // Bound the first time a remote request names them
+    private final RemoteSaveManager remoteSaves;
+
+    private final Map<UUID, Prefetch> prefetches;
+    private final LongAdder prefetchHits;
+    private final LongAdder prefetchExpired;
+    private final Map<UUID, Long> orphans; // Entries without an online player and when the sweep first saw them, only touched by the sweep
+    private final long shallowSize;
+    private final LongAdder evictions;
+    private volatile long estimatedBytes;
+    private volatile int capacity;
+    private volatile long orphanExpiry;
 
     @SuppressWarnings("unchecked")
     public SessionCache(JavaPlugin plugin, CacheManager<T> manager, SessionManager sessionManager, boolean debug){
         this.cacheManager = manager;
         this.plugin = plugin;
+        this.sessionManager = sessionManager;
         this.logger = plugin.getLogger();
 
         this.DEBUG = debug;
 
-        this.syncLoadMethods = new HashSet<>();
-        this.asyncLoadMethods = new HashSet<>();
-        this.syncUnLoadMethods = new HashSet<>();
-        this.asyncUnLoadMethods = new HashSet<>();
-        this.syncLoginMethods = new HashSet<>();
-        this.asyncLoginMethods = new HashSet<>();
+        this.metrics = sessionManager.getMetrics();
+        this.hits = metrics.counter("sessionmanager_cache_hits_total", "cache", manager.getCacheName());
+        this.misses = metrics.counter("sessionmanager_cache_misses_total", "cache", manager.getCacheName());
+        this.loads = metrics.counter("sessionmanager_cache_loads_total", "cache", manager.getCacheName());
 
         T obj = cacheManager.createCacheObject(null);
 
@@ -68,17 +136,76 @@ public class SessionCache<T extends CachedData> extends SessionDependency implem
                 .loaderThreadCount(manager.getThreadCount())
                 .storeByReference(true)
                 .disableStatistics(true)
+                .entryCapacity(Long.MAX_VALUE) // Evicting here would skip the unload hooks, the sweep bounds the cache instead
                 .loader((id) -> getUser((UUID) id))
                 .build();
 
-        fetchMethods(obj.getClass());
+        Cache2kConfiguration offlineConfiguration = new Cache2kConfiguration<>();
+
+        offlineConfiguration.setKeyType(UUID.class);
+        offlineConfiguration.setValueType(obj.getClass());
+
+        this.offlineCache = Cache2kBuilder.of(offlineConfiguration)
+                .name(manager.getCacheName() + "-offline")
+                .storeByReference(true)
+                .disableStatistics(true)
+                .entryCapacity(GlobalConfig.cache_offline_capacity)
+                .expireAfterWrite(GlobalConfig.cache_offline_ttl, TimeUnit.SECONDS)
+                .build();
+        this.offlineLoads = new ConcurrentHashMap<>();
+        this.loading = new ConcurrentHashMap<>();
+        this.offlineHits = metrics.counter("sessionmanager_cache_offline_hits_total", "cache", manager.getCacheName());
+
+        this.snapshotStore = sessionManager.getSnapshots();
+        this.snapshotHits = metrics.counter("sessionmanager_cache_snapshot_hits_total", "cache", manager.getCacheName());
+        this.snapshotMisses = metrics.counter("sessionmanager_cache_snapshot_misses_total", "cache", manager.getCacheName());
+
+        List<Method> methods = fetchMethods(obj.getClass());
+        this.hooks = methods;
+        this.namedHooks = new ConcurrentHashMap<>();
+        this.remoteSaves = sessionManager.getRemoteSaves();
+        this.prefetches = new ConcurrentHashMap<>();
+        this.prefetchHits = metrics.counter("sessionmanager_cache_prefetch_hits_total", "cache", manager.getCacheName());
+        this.prefetchExpired = metrics.counter("sessionmanager_cache_prefetch_expired_total", "cache", manager.getCacheName());
+
+        this.syncLoadMethods = bindMethods(methods, LoadType.LOAD, ExecutionType.SYNC);
+        this.asyncLoadMethods = bindMethods(methods, LoadType.LOAD, ExecutionType.ASYNC);
+        this.prefetchLoadMethods = bindMethods(prefetchMethods(methods, true), LoadType.LOAD, ExecutionType.ASYNC);
+        this.remainingLoadMethods = bindMethods(prefetchMethods(methods, false), LoadType.LOAD, ExecutionType.ASYNC);
+        this.syncUnLoadMethods = bindMethods(methods, LoadType.UNLOAD, ExecutionType.SYNC);
+        this.asyncUnLoadMethods = bindMethods(methods, LoadType.UNLOAD, ExecutionType.ASYNC);
+        this.syncLoginMethods = bindMethods(methods, LoadType.LOGIN, ExecutionType.SYNC);
+        this.asyncLoginMethods = bindMethods(methods, LoadType.LOGIN, ExecutionType.ASYNC);
+        this.syncSaveMethods = bindMethods(methods, LoadType.SAVE, ExecutionType.SYNC);
+        this.asyncSaveMethods = bindMethods(methods, LoadType.SAVE, ExecutionType.ASYNC);
+
+        this.codec = manager.getCodec();
+        this.journal = sessionManager.getJournal();
+        this.throttle = sessionManager.getBackgroundThrottle();
+
+        this.unloading = new ConcurrentHashMap<>();
+        this.mainThread = sessionManager.getMainThreadQueue();
+        this.players = new PlayerExecutor(manager.getCacheName(), manager.getThreadCount(), logger);
+        this.orphans = new HashMap<>();
+        this.shallowSize = shallowSize(obj.getClass());
+        this.evictions = metrics.counter("sessionmanager_cache_evictions_total", "cache", manager.getCacheName());
+        this.capacity = GlobalConfig.cache_capacity;
+        this.orphanExpiry = TimeUnit.SECONDS.toNanos(GlobalConfig.cache_orphan_expiry);
+
+        metrics.gauge("sessionmanager_cache_entries", () -> cache.asMap().size(), "cache", manager.getCacheName());
+        metrics.gauge("sessionmanager_cache_estimated_bytes", () -> estimatedBytes, "cache", manager.getCacheName());
+
+        long sweepInterval = GlobalConfig.cache_sweep_interval * 20L;
+        Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::sweep, sweepInterval, sweepInterval);
+
+        if (codec != null){
+            Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::journalDirty, GlobalConfig.journal_state_interval, GlobalConfig.journal_state_interval);
 
-        /*
-        if (ALLOWREMOTESAVE){
-            new RemoteSaveManager(plugin, this);
+            List<JournalState> recovered = journal.takeRecovered(manager.getCacheName());
+            if (!recovered.isEmpty()){
+                journal.addRecovery(recover(recovered));
+            }
         }
-        Unimplemented because im stupid
-         */
 
         Bukkit.getPluginManager().registerEvents(this, plugin);
         sessionManager.registerDependency(this, "SessionCache");
@@ -88,39 +215,520 @@ public class SessionCache<T extends CachedData> extends SessionDependency implem
         return cache;
     }
 
-    public CompletableFuture<T> getUserFuture(UUID uuid){
-        if (cache.containsKey(uuid)){
-            return CompletableFuture.completedFuture(cache.get(uuid));
+    /*
+     * Opt in to write behind, entries marked dirty are saved through their SAVE hooks in batches every interval
+     * and unloading only saves entries that are still dirty.
+     */
+    public void enableWriteBehind(int intervalTicks, int batchSize){
+        if (flushTask != null){
+            flushTask.cancel();
         }
 
-        T data = cacheManager.createCacheObject(uuid);
-        CompletableFuture<Void> future = new CompletableFuture<>();
+        this.writeBehindBatch = batchSize;
+        this.writeBehind = true;
+        this.flushTask = Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::flushDirty, intervalTicks, intervalTicks);
+    }
+
+    /*
+     * Opt in to snapshot handoff, a closing session writes its state with the codec for the next server to read back
+     * instead of running the LOAD hooks. Missing, stale or other version snapshots fall back to loading.
+     */
+    public void enableSnapshots() throws SQLException {
+        if (codec == null){
+            throw new IllegalStateException("Snapshots need a codec, cache " + cacheManager.getCacheName() + " has none");
+        }
+
+        snapshotStore.createTable();
+        this.snapshots = true;
+    }
+
+    /*
+     * Opt in to remote requests, other services can have entries saved or reloaded through session_remote_requests,
+     * see RemoteSaveManager
+     */
+    public void enableRemoteRequests() throws SQLException {
+        remoteSaves.register(this);
+    }
+
+    /*
+     * Runs a batch of remote requests for the players with an entry here, the future completes with the ids of the
+     * requests that were run once their sync hooks are done too. The ids of requests whose hooks failed are added to
+     * failed, the rest are left for the server holding the player.
+     */
+    CompletableFuture<List<Long>> runRemote(List<RemoteSaveManager.Request> requests, Queue<Long> failed){
+        List<CompletableFuture<Long>> running = new ArrayList<>();
+        Queue<T> saved = new ConcurrentLinkedQueue<>();
+
+        for (RemoteSaveManager.Request request : requests){
+            if (cache.peek(request.getUuid()) == null){
+                continue;
+            }
+
+            running.add(players.submit(request.getUuid(), () -> runRemote(request, saved))
+                    .exceptionally(e -> {
+                        failed.add(request.getId()); // Left in the table, the manager tries it again
+                        return null;
+                    }));
+        }
+
+        if (running.isEmpty()){
+            return CompletableFuture.completedFuture(new ArrayList<>());
+        }
+
+        return CompletableFuture.allOf(running.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            journalSaved(new ArrayList<>(saved));
+
+            List<Long> ids = new ArrayList<>();
+            for (CompletableFuture<Long> future : running){
+                Long id = future.join();
+                if (id != null){
+                    ids.add(id);
+                }
+            }
+            return ids;
+        });
+    }
+
+    /*
+     * Runs in the players lane so a request can never overtake their load or unload, completes with the request id once
+     * the sync hooks are done too, with null when the request was left alone or exceptionally when a hook failed
+     */
+    private CompletableFuture<Long> runRemote(RemoteSaveManager.Request request, Queue<T> saved){
+        T data = cache.peek(request.getUuid());
+        if (data == null || unloading.containsKey(request.getUuid())){
+            return CompletableFuture.completedFuture(null); // A closing entry is saved anyway and loaded fresh by the next server
+        }
+
+        HookDispatcher async = remoteHooks(request.getType(), ExecutionType.ASYNC, request.getHook());
+        HookDispatcher sync = remoteHooks(request.getType(), ExecutionType.SYNC, request.getHook());
+        if (async.isEmpty() && sync.isEmpty()){
+            logger.warning("Remote request " + request.getId() + " for cache " + cacheManager.getCacheName() + " has no " + request.getType() + " hooks named " + request.getHook());
+            return CompletableFuture.completedFuture(request.getId());
+        }
+
+        boolean fullSave = request.getType() == LoadType.SAVE && request.getHook() == null;
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        synchronized (data){
+            if (fullSave){
+                data.consumeDirty();
+                saved.add(data);
+            }
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
             try {
-                asyncLoad(data);
-            } catch (IllegalAccessException|InvocationTargetException e){
+                async.invoke(data);
+            } catch (InvocationTargetException e){
+                if (fullSave){
+                    data.markDirty();
+                }
+                failure.set(e.getCause());
+                e.printStackTrace();
+            }
+        }
+
+        return mainThread.submit(() -> {
+            try {
+                sync.invoke(data);
+            } catch (InvocationTargetException e){
+                if (fullSave){
+                    data.markDirty();
+                }
+                failure.compareAndSet(null, e.getCause());
                 e.printStackTrace();
             }
+        }, false).thenApply(ignored -> {
+            Throwable failed = failure.get();
+            if (failed != null){
+                throw new CompletionException(failed);
+            }
+            return request.getId();
+        });
+    }
+
+    private HookDispatcher remoteHooks(LoadType type, ExecutionType thread, String hook){
+        if (hook == null){
+            if (type == LoadType.SAVE){
+                return thread == ExecutionType.SYNC ? syncSaveMethods : asyncSaveMethods;
+            }
+            return thread == ExecutionType.SYNC ? syncLoadMethods : asyncLoadMethods;
+        }
+
+        return namedHooks.computeIfAbsent(type + ":" + thread + ":" + hook, key -> {
+            List<Method> named = new ArrayList<>();
+            for (Method method : hooks){
+                if (method.getDeclaredAnnotation(CacheLoader.class).name().equals(hook)){
+                    named.add(method);
+                }
+            }
+            return bindMethods(named, type, thread);
+        });
+    }
+
+    /*
+     * Overrides the configured bounds for this cache. Entries whose player is not online are unloaded once they have been
+     * offline for the expiry, or sooner while the cache holds more than capacity entries. A capacity of 0 is unbounded.
+     */
+    public void setBounds(int capacity, long orphanExpiry, TimeUnit unit){
+        this.capacity = capacity;
+        this.orphanExpiry = unit.toNanos(orphanExpiry);
+    }
+
+    /*
+     * Accounts the cache footprint and unloads entries that no session will ever close. Entries of players without a
+     * session here, like ones loaded for a login that was refused afterwards or whose session moved to another server, are
+     * dropped without their hooks as saving them would overwrite newer data.
+     */
+    private void sweep(){
+        long now = System.nanoTime();
+        long bytes = 0;
+        int size = 0;
+
+        for (Map.Entry<UUID, T> entry : cache.asMap().entrySet()){
+            bytes += estimateSize(entry.getValue());
+            size++;
+
+            UUID uuid = entry.getKey();
+            if (Bukkit.getPlayer(uuid) != null || unloading.containsKey(uuid)){
+                orphans.remove(uuid);
+            } else {
+                orphans.putIfAbsent(uuid, now);
+            }
+        }
+        estimatedBytes = bytes;
+
+        orphans.keySet().removeIf(uuid -> !cache.containsKey(uuid));
 
-            future.complete(null);
+        prefetches.values().removeIf(prefetch -> {
+            if (!prefetch.isExpired(now)){
+                return false;
+            }
+            prefetchExpired.increment();
+            return true; // The player never arrived
         });
 
-        CompletableFuture<T> finalFuture = new CompletableFuture<>();
+        List<Map.Entry<UUID, Long>> candidates = new ArrayList<>();
+        for (Map.Entry<UUID, Long> entry : orphans.entrySet()){
+            if (entry.getValue() != now){ // Seen offline by an earlier sweep too, a fresh prefetch gets one interval to finish joining
+                candidates.add(entry);
+            }
+        }
+        candidates.sort(Map.Entry.comparingByValue());
+
+        int over = capacity > 0 ? size - capacity : 0;
+        for (Map.Entry<UUID, Long> entry : candidates){
+            if (over <= 0 && now - entry.getValue() < orphanExpiry){
+                break; // Oldest first, the rest are younger
+            }
+
+            T data = cache.peek(entry.getKey());
+            if (data == null){
+                continue;
+            }
+
+            evictions.increment();
+            over--;
+
+            UUID uuid = entry.getKey();
+            if (!sessionManager.hasLocalSession(uuid)){
+                logger.warning("Dropping " + cacheManager.getCacheName() + " cache entry for " + uuid + " without saving, it has no online player or session here");
+                players.execute(uuid, () -> cache.asMap().remove(uuid, data)); // Behind a load still putting a newer entry
+                continue;
+            }
+
+            logger.warning("Unloading " + cacheManager.getCacheName() + " cache entry for " + uuid + " which has no online player");
+            players.submit(uuid, () -> unload(uuid, data, false)); // No session is closing, nobody will read a snapshot
+        }
+    }
+
+    private long estimateSize(T data){
+        long size = cacheManager.estimateSize(data);
+        if (size >= 0){
+            return size;
+        }
+
+        if (codec == null){
+            return shallowSize;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            synchronized (data){
+                codec.write(data, new DataOutputStream(bytes));
+            }
+        } catch (IOException e){
+            return shallowSize;
+        }
+        return shallowSize + bytes.size(); // Encoded state is a floor for what the fields reference
+    }
+
+    /*
+     * Object header and fields of the class with 8 byte references and alignment, what they reference is not counted
+     */
+    private static long shallowSize(Class<?> clazz){
+        long size = 16;
+        for (Class<?> type = clazz; type != null; type = type.getSuperclass()){
+            for (Field field : type.getDeclaredFields()){
+                if (Modifier.isStatic(field.getModifiers())){
+                    continue;
+                }
+
+                Class<?> fieldType = field.getType();
+                if (fieldType == byte.class || fieldType == boolean.class){
+                    size += 1;
+                } else if (fieldType == short.class || fieldType == char.class){
+                    size += 2;
+                } else if (fieldType == int.class || fieldType == float.class){
+                    size += 4;
+                } else {
+                    size += 8;
+                }
+            }
+        }
+        return (size + 7) & ~7;
+    }
+
+    /*
+     * Each save runs in the players lane, so an unload queued meanwhile waits for the sync SAVE hooks too and never releases
+     * the session while a save of it is still pending
+     */
+    private void flushDirty(){
+        List<CompletableFuture<Void>> flushing = new ArrayList<>();
+        Queue<T> saved = new ConcurrentLinkedQueue<>();
+
+        for (Map.Entry<UUID, T> entry : cache.asMap().entrySet()){
+            if (flushing.size() >= writeBehindBatch){
+                break;
+            }
+
+            T data = entry.getValue();
+            if (!data.isDirty()){
+                continue;
+            }
+
+            try {
+                throttle.enter(); // Bulk saves make way for logins, left again once the async hooks are done
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                break;
+            }
+
+            UUID uuid = entry.getKey();
+            flushing.add(players.submit(uuid, () -> flush(uuid, data, saved)));
+        }
+
+        if (flushing.isEmpty()){
+            return;
+        }
+
+        CompletableFuture.allOf(flushing.toArray(new CompletableFuture[0])).whenComplete((ignored, e) -> journalSaved(new ArrayList<>(saved)));
+    }
+
+    private CompletableFuture<Void> flush(UUID uuid, T data, Queue<T> saved){
+        try {
+            if (cache.peek(uuid) != data || unloading.containsKey(uuid) || !data.consumeDirty()){ // Cleared before saving so changes made during the save mark it dirty again
+                return null; // Unloaded meanwhile, which saved it
+            }
+
+            synchronized (data){
+                asyncSave(data);
+            }
+        } catch (InvocationTargetException e){
+            data.markDirty(); // Try again next flush
+            e.printStackTrace();
+            return null;
+        } finally {
+            throttle.leave();
+        }
+
+        saved.add(data);
+        if (syncSaveMethods.isEmpty()){
+            return null;
+        }
+
+        return mainThread.submit(() -> {
+            try {
+                syncSave(data);
+            } catch (InvocationTargetException e){
+                data.markDirty();
+                e.printStackTrace();
+            }
+        }, false);
+    }
+
+    private void journalDirty(){
+        for (T data : cache.asMap().values()){
+            journalEntry(data);
+        }
+    }
+
+    private void journalEntry(T data){
+        if (!data.consumeJournal()){
+            return;
+        }
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            synchronized (data){
+                codec.write(data, new DataOutputStream(bytes));
+            }
+            journal.state(cacheManager.getCacheName(), data.uuid, codec.getVersion(), bytes.toByteArray());
+        } catch (IOException e){
+            logger.severe("Unable to journal " + cacheManager.getCacheName() + " state for " + data.uuid);
+            e.printStackTrace();
+        }
+    }
+
+    /*
+     * Only for entries that just went through their SAVE hooks, without any nothing was written and the journal stays the
+     * only copy of the changes until the entry unloads
+     */
+    private void journalSaved(List<T> batch){
+        if (codec == null || (asyncSaveMethods.isEmpty() && syncSaveMethods.isEmpty())){
+            return;
+        }
+
+        for (T data : batch){
+            if (!data.isDirty()){ // A failed save stays journaled
+                journal.saved(cacheManager.getCacheName(), data.uuid);
+            }
+        }
+    }
+
+    /*
+     * Flushes state the journal recovered from a crash, through the SAVE hooks or the UNLOAD hooks when there are none
+     */
+    private CompletableFuture<Void> recover(List<JournalState> states){
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean unload = asyncSaveMethods.isEmpty() && syncSaveMethods.isEmpty();
+
+        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+            List<T> restored = new ArrayList<>();
+
+            for (JournalState state : states){
+                if (state.getVersion() != codec.getVersion()){
+                    logger.severe("Journaled " + cacheManager.getCacheName() + " state for " + state.getUuid() + " has codec version " + state.getVersion() + " but " + codec.getVersion() + " is in use, it can not be recovered");
+                    continue;
+                }
+
+                T data = cacheManager.createCacheObject(state.getUuid());
+                try {
+                    codec.read(data, new DataInputStream(new ByteArrayInputStream(state.getData())));
+
+                    throttle.enter();
+                    try {
+                        if (unload){
+                            asyncUnload(data);
+                        } else {
+                            asyncSave(data);
+                        }
+                    } finally {
+                        throttle.leave();
+                    }
+                    restored.add(data);
+                } catch (IOException|InvocationTargetException|InterruptedException e){
+                    logger.severe("Unable to recover journaled " + cacheManager.getCacheName() + " state for " + state.getUuid());
+                    e.printStackTrace();
+                }
+            }
 
-        SessionManager.newChain()
-                .sync(() -> {
+            CompletableFuture<?>[] sync = new CompletableFuture[restored.size()];
+            for (int x = 0; x < restored.size(); x++){
+                T data = restored.get(x);
+                sync[x] = mainThread.submit(() -> {
                     try {
-                        syncLoad(data);
-                    } catch (IllegalAccessException|InvocationTargetException e){
+                        if (unload){
+                            syncUnload(data);
+                        } else {
+                            syncSave(data);
+                        }
+                    } catch (InvocationTargetException e){
                         e.printStackTrace();
                     }
-                })
-                .future(future)
-                .current(() -> finalFuture.complete(data))
-                .execute();
+                }, false);
+            }
+
+            CompletableFuture.allOf(sync).thenRun(() -> {
+                logger.info("Recovered " + restored.size() + " journaled entries for cache " + cacheManager.getCacheName());
+                future.complete(null);
+            });
+        });
 
-        return finalFuture;
+        return future;
+    }
+
+    /*
+     * Players without a session here are loaded once and shared by every caller for a short while, treat their data as
+     * read only as nothing saves it
+     */
+    public CompletableFuture<T> getUserFuture(UUID uuid){
+        T cached = cache.peek(uuid);
+        if (cached != null){
+            hits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        CompletableFuture<T> session = loading.get(uuid);
+        if (session != null){
+            hits.increment();
+            return session; // Their session is loading here, an offline copy would be stale from the start
+        }
+
+        cached = offlineCache.peek(uuid);
+        if (cached != null){
+            offlineHits.increment();
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        misses.increment();
+
+        CompletableFuture<T> load = new CompletableFuture<>();
+        CompletableFuture<T> running = offlineLoads.putIfAbsent(uuid, load);
+        if (running != null){
+            return running; // Someone is already loading them
+        }
+
+        loadOffline(uuid).whenComplete((data, e) -> {
+            offlineLoads.computeIfPresent(uuid, (key, current) -> {
+                if (current != load){
+                    return current;
+                }
+
+                if (e == null){
+                    offlineCache.put(uuid, data); // Atomic with invalidateOffline, a login during the load never sees this copy
+                }
+                return null;
+            });
+
+            if (e != null){
+                load.completeExceptionally(e); // The next caller tries again
+            } else {
+                load.complete(data);
+            }
+        });
+
+        return load;
+    }
+
+    private void invalidateOffline(UUID uuid){
+        offlineLoads.remove(uuid);
+        offlineCache.remove(uuid);
+    }
+
+    private CompletableFuture<T> loadOffline(UUID uuid){
+        loads.increment();
+
+        T data = cacheManager.createCacheObject(uuid);
+
+        return players.submit(uuid, () -> {
+            CompletableFuture<Void> sync = runSync(syncLoadMethods, data);
+
+            try {
+                asyncLoad(data);
+            } catch (InvocationTargetException e){
+                e.printStackTrace();
+            }
+
+            return sync.thenApply(ignored -> data);
+        });
     }
 
     private T getUser(UUID id){
@@ -133,12 +741,13 @@ public class SessionCache<T extends CachedData> extends SessionDependency implem
             }
         }
 
+        loads.increment();
         T data = cacheManager.createCacheObject(id);
         // For sync loads we just go full ham and shove it in the cache as fast as possible
         try {
             syncLoad(data);
             asyncLoad(data);
-        } catch (IllegalAccessException|InvocationTargetException e){
+        } catch (InvocationTargetException e){
             e.printStackTrace();
         }
 
@@ -151,82 +760,187 @@ public class SessionCache<T extends CachedData> extends SessionDependency implem
             return;
         }
 
-        T data = cacheManager.createCacheObject(id);
-        CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<T> load = new CompletableFuture<>();
+        loading.put(id, load);
+        invalidateOffline(id); // After the load is registered so no offline load can start in between and cache a stale copy
+
+        players.submit(id, () -> { // Queued behind the prefetch, which is most likely done while the old server closed the session
+            if (snapshots){
+                T hydrated = hydrate(id);
+                if (hydrated != null){
+                    prefetches.remove(id); // The snapshot already holds everything
+                    loaded(id, load, hydrated);
+                    return null;
+                }
+            }
+
+            loads.increment();
+
+            Prefetch prefetch = takePrefetch(id);
+            T data = prefetch == null ? cacheManager.createCacheObject(id) : prefetch.data;
+            CompletableFuture<Void> sync = runSync(syncLoadMethods, data);
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
             try {
-                asyncLoad(data);
-            } catch (IllegalAccessException|InvocationTargetException e){
+                if (prefetch == null){
+                    asyncLoad(data);
+                } else {
+                    remainingLoadMethods.invoke(data);
+                }
+            } catch (InvocationTargetException e){
                 e.printStackTrace();
             }
 
-            future.complete(null);
+            return sync.thenRun(() -> loaded(id, load, data));
+        }).whenComplete((ignored, e) -> {
+            if (e != null && loading.remove(id, load)){
+                load.completeExceptionally(e);
+            }
         });
+    }
 
-        SessionManager.newChain()
-                .sync(() -> {
-                    try {
-                        syncLoad(data);
-                    } catch (IllegalAccessException|InvocationTargetException e){
-                        e.printStackTrace();
-                    }
-                })
-                .future(future)
-                .current(() -> cache.putIfAbsent(id, data))
-                .execute();
+    private void loaded(UUID id, CompletableFuture<T> load, T data){
+        cache.putIfAbsent(id, data);
+        loading.remove(id, load);
+        load.complete(cache.peek(id));
+    }
+
+    /*
+     * Runs hooks on the main thread, the future completes once they are done
+     */
+    private CompletableFuture<Void> runSync(HookDispatcher hooks, T data){
+        return mainThread.submit(() -> {
+            try {
+                hooks.invoke(data);
+            } catch (InvocationTargetException e){
+                e.printStackTrace();
+            }
+        }, false);
+    }
+
+    /*
+     * Runs the prefetch LOAD hooks for a player the proxy is moving here, their session is acquired and the rest loaded on
+     * login. Hooks marked prefetch run before the others no matter their order.
+     */
+    @Override
+    public void onSessionIntent(UUID player){
+        if (prefetchLoadMethods.isEmpty() || cache.containsKey(player)){
+            return;
+        }
+
+        Prefetch prefetch = new Prefetch(cacheManager.createCacheObject(player));
+        if (prefetches.putIfAbsent(player, prefetch) != null){
+            return; // Already prefetching
+        }
+
+        players.execute(player, () -> {
+            try {
+                prefetchLoadMethods.invoke(prefetch.data);
+            } catch (InvocationTargetException e){
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private Prefetch takePrefetch(UUID id){
+        Prefetch prefetch = prefetches.remove(id);
+        if (prefetch == null){
+            return null;
+        }
+
+        if (prefetch.isExpired(System.nanoTime())){
+            prefetchExpired.increment();
+            return null;
+        }
+
+        prefetchHits.increment();
+        return prefetch;
+    }
+
+    private T hydrate(UUID id){
+        byte[] snapshot;
+        try {
+            snapshot = snapshotStore.take(cacheManager.getCacheName(), id, codec.getVersion());
+        } catch (SQLException e){
+            e.printStackTrace();
+            snapshot = null;
+        }
+
+        if (snapshot == null){
+            snapshotMisses.increment();
+            return null;
+        }
+
+        T data = cacheManager.createCacheObject(id);
+        try {
+            codec.read(data, new DataInputStream(new ByteArrayInputStream(snapshot)));
+        } catch (IOException e){
+            logger.severe("Unable to read the " + cacheManager.getCacheName() + " snapshot for " + id + ", loading it instead");
+            e.printStackTrace();
+            snapshotMisses.increment();
+            return null;
+        }
+
+        snapshotHits.increment();
+        return data;
     }
 
-    private void fetchMethods(Class clazz){
+    private List<Method> fetchMethods(Class clazz){
+        List<Method> methods = new ArrayList<>();
+
         for (Method method : clazz.getDeclaredMethods()){
             CacheLoader annotation = method.getDeclaredAnnotation(CacheLoader.class);
             if (method.getParameterCount() != 0 || annotation == null){
                 continue;
             }
 
-            method.setAccessible(true);
+            methods.add(method);
+        }
 
-            switch (annotation.type()){
-                case LOAD:
-                    switch (annotation.thread()){
-                        case SYNC:
-                            syncLoadMethods.add(method);
-                            break;
-                        case ASYNC:
-                            asyncLoadMethods.add(method);
-                            break;
-                    }
-                    break;
-                case UNLOAD:
-                    switch (annotation.thread()){
-                        case SYNC:
-                            syncUnLoadMethods.add(method);
-                            break;
-                        case ASYNC:
-                            asyncUnLoadMethods.add(method);
-                            break;
-                    }
-                    break;
-                case LOGIN:
-                    switch (annotation.thread()){
-                        case SYNC:
-                            syncLoginMethods.add(method);
-                            break;
-                        case ASYNC:
-                            asyncLoginMethods.add(method);
-                            break;
-                    }
-                    break;
+        return methods;
+    }
+
+    private static List<Method> prefetchMethods(List<Method> methods, boolean prefetch){
+        List<Method> matching = new ArrayList<>();
+
+        for (Method method : methods){
+            if (method.getDeclaredAnnotation(CacheLoader.class).prefetch() == prefetch){
+                matching.add(method);
             }
         }
+
+        return matching;
+    }
+
+    private HookDispatcher bindMethods(List<Method> methods, LoadType type, ExecutionType thread){
+        List<Method> matching = new ArrayList<>();
+
+        for (Method method : methods){
+            CacheLoader annotation = method.getDeclaredAnnotation(CacheLoader.class);
+            if (annotation.type() == type && annotation.thread() == thread){
+                matching.add(method);
+            }
+        }
+
+        try {
+            return HookDispatcher.bind(matching, metrics, "cache", cacheManager.getCacheName(), "type", type.name().toLowerCase(), "thread", thread.name().toLowerCase());
+        } catch (IllegalAccessException e){
+            throw new IllegalStateException("Unable to bind " + type + " " + thread + " cache loaders for " + cacheManager.getCacheName(), e);
+        }
     }
 
     public T getCachedData(UUID uuid){
+        T data = cache.peek(uuid);
+        if (data != null){
+            hits.increment();
+            return data;
+        }
+
+        misses.increment();
         return cache.get(uuid);
     }
 
     public void preFetchCachedData(UUID uuid){
-        loadUser(uuid);
+        loadUser(uuid); // Their session data is loaded fresh and is the only copy that changes from now on
     }
 
     @Override
@@ -241,88 +955,233 @@ public class SessionCache<T extends CachedData> extends SessionDependency implem
 
     @Override
     public CompletableFuture<Void> onSessionCloseWithFuture(UUID player) {
-        if (!cache.containsKey(player)){
-            logger.severe("Attempted to close session but no cache data was available for: " + player);
+        return players.submit(player, () -> { // Runs after a LOAD still in progress has put the entry
+            T data = cache.peek(player);
+            if (data == null){
+                CompletableFuture<Void> running = unloading.get(player);
+                if (running != null){
+                    return running; // Evicted while the session closed
+                }
+
+                logger.severe("Attempted to close session but no cache data was available for: " + player);
+                return null;
+            }
+
+            return unload(player, data, snapshots);
+        });
+    }
+
+    /*
+     * Whatever is held is older than what the server that took over loaded, saving it would overwrite their progress
+     */
+    @Override
+    public CompletableFuture<Void> onSessionFencedWithFuture(UUID player) {
+        prefetches.remove(player);
+        return players.submit(player, () -> {
+            if (cache.peek(player) != null){
+                logger.warning("Dropping " + cacheManager.getCacheName() + " cache entry for " + player + " without saving, their session was taken over");
+                cache.remove(player);
+            }
             return null;
-        }
+        });
+    }
+
+    /*
+     * The flush runs the main thread queue while it waits, so this is a regular unload. The entry is journaled first in
+     * case the deadline cuts the save short, and a close that started before the shutdown is waited on as it still has to
+     * finish writing.
+     */
+    @Override
+    public CompletableFuture<Void> onSessionShutdown(UUID player) {
+        return players.submit(player, () -> {
+            T data = cache.peek(player);
+            if (data == null){
+                return unloading.get(player); // Null when never loaded
+            }
 
-        T data = getCachedData(player);
+            if (codec != null){
+                journalEntry(data);
+            }
+            return unload(player, data, false);
+        });
+    }
+
+    /*
+     * The future completes once the sync and async hooks are done, exceptionally if a SAVE or UNLOAD hook failed
+     */
+    private CompletableFuture<Void> unload(UUID player, T data, boolean snapshot){
         CompletableFuture<Void> future = new CompletableFuture<>();
+        CompletableFuture<Void> running = unloading.putIfAbsent(player, future);
+        if (running != null){
+            return running;
+        }
+
+        boolean save = !writeBehind || data.consumeDirty(); // With write behind only what is still dirty needs saving
+        AtomicReference<Throwable> failure = new AtomicReference<>();
 
-        Bukkit.getScheduler().runTask(plugin, () -> {
+        CompletableFuture<Void> sync;
+        try {
+            sync = mainThread.submit(() -> { // Ahead of other sync work, another server may be waiting on this session
+                try {
+                    if (save){
+                        syncSave(data);
+                    }
+                    syncUnload(data);
+                } catch (InvocationTargetException e){
+                    failure.compareAndSet(null, e.getCause());
+                    e.printStackTrace();
+                } finally {
+                    cache.remove(player); //Remove cache entry as the session is being flushed now
+                }
+            }, true);
+        } catch (RuntimeException e){
+            if (save){
+                data.markDirty(); // Nothing was saved
+            }
+            unloading.remove(player, future);
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        synchronized (data){ // Waits out a flush that is still saving this entry
             try {
-                syncUnload(data);
-            } catch (IllegalAccessException|InvocationTargetException e){
+                if (save){
+                    asyncSave(data);
+                }
+                asyncUnload(data);
+            } catch (InvocationTargetException e){
+                failure.compareAndSet(null, e.getCause());
                 e.printStackTrace();
-            } finally {
-                future.complete(null);
+            }
+        }
 
-                cache.remove(player); //Remove cache entry as the session is being flushed now
+        CompletableFuture<?> done = !snapshot ? sync : sync.handleAsync((ignored, e) -> { // Encoded once the sync hooks are done changing the data
+            byte[] state = null;
+            if (e == null && failure.get() == null){ // The database may be behind otherwise, the next server has to load what is there
+                synchronized (data){
+                    state = encode(data);
+                }
+            }
+            writeSnapshot(player, state);
+            return null;
+        }, players::executeUnordered);
+
+        done.whenComplete((ignored, e) -> {
+            unloading.remove(player, future);
+
+            Throwable failed = failure.get();
+            if (failed != null){
+                future.completeExceptionally(failed);
+            } else {
+                future.complete(null);
             }
         });
+        return future;
+    }
 
+    private byte[] encode(T data){
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
         try {
-            asyncUnload(data);
-        } catch (IllegalAccessException|InvocationTargetException e){
+            codec.write(data, new DataOutputStream(bytes));
+        } catch (IOException e){
+            logger.severe("Unable to snapshot " + cacheManager.getCacheName() + " state for " + data.uuid);
             e.printStackTrace();
+            return null;
         }
+        return bytes.toByteArray();
+    }
 
-        return future;
+    private void writeSnapshot(UUID player, byte[] state){
+        try {
+            if (state == null){
+                snapshotStore.delete(cacheManager.getCacheName(), player);
+            } else {
+                snapshotStore.write(cacheManager.getCacheName(), player, codec.getVersion(), state);
+            }
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
     }
 
+    /*
+     * The load queued on pre-login may still be waiting on the tick budget, the LOGIN hooks run once it is done. Never
+     * falls through to the cache loader, which would run every LOAD hook on the main thread a second time.
+     */
     @EventHandler (ignoreCancelled = true, priority = EventPriority.HIGH)
     public void onLogin(PlayerJoinEvent e){
-        T data = cache.get(e.getPlayer().getUniqueId());
+        UUID uuid = e.getPlayer().getUniqueId();
+        T data = cache.peek(uuid);
+        if (data != null){
+            login(data);
+            return;
+        }
 
-        Bukkit.getScheduler().runTaskAsynchronously(plugin, () -> {
+        CompletableFuture<T> load = loading.get(uuid);
+        if (load == null){
+            data = cache.peek(uuid); // The entry is put before the load is dropped, it may have finished in between
+            if (data != null){
+                login(data);
+                return;
+            }
+
+            logger.warning("Player " + uuid + " joined without " + cacheManager.getCacheName() + " cache data loaded or loading, loading it now");
+            loadUser(uuid);
+            load = loading.get(uuid);
+        }
+
+        if (load != null){
+            load.thenAccept(this::login);
+        }
+    }
+
+    private void login(T data){
+        players.execute(data.uuid, () -> {
             try {
                 asyncLogin(data);
-            } catch (IllegalAccessException|InvocationTargetException ex){
+            } catch (InvocationTargetException ex){
                 ex.printStackTrace();
             }
         });
 
-        try {
-            syncLogin(data);
-        } catch (IllegalAccessException|InvocationTargetException ex){
-            ex.printStackTrace();
-        }
+        mainThread.submit(() -> {
+            try {
+                syncLogin(data);
+            } catch (InvocationTargetException ex){
+                ex.printStackTrace();
+            }
+        }, false);
     }
 
-    private void syncLoad(T data) throws IllegalAccessException, InvocationTargetException{
-        for (Method method : syncLoadMethods){
-            method.invoke(data);
-        }
+    private void syncLoad(T data) throws InvocationTargetException{
+        syncLoadMethods.invoke(data);
     }
 
-    private void asyncLoad(T data) throws IllegalAccessException, InvocationTargetException {
-        for (Method method : asyncLoadMethods) {
-            method.invoke(data);
-        }
+    private void asyncLoad(T data) throws InvocationTargetException{
+        asyncLoadMethods.invoke(data);
     }
 
-    private void syncUnload(T data) throws IllegalAccessException, InvocationTargetException{
-        for (Method method : syncUnLoadMethods){
-            method.invoke(data);
-        }
+    private void syncUnload(T data) throws InvocationTargetException{
+        syncUnLoadMethods.invoke(data);
     }
 
-    private void asyncUnload(T data) throws IllegalAccessException, InvocationTargetException{
-        for (Method method : asyncUnLoadMethods){
-            method.invoke(data);
-        }
+    private void asyncUnload(T data) throws InvocationTargetException{
+        asyncUnLoadMethods.invoke(data);
     }
 
-    private void syncLogin(T data) throws IllegalAccessException, InvocationTargetException{
-        for (Method method : syncLoginMethods){
-            method.invoke(data);
-        }
+    private void syncSave(T data) throws InvocationTargetException{
+        syncSaveMethods.invoke(data);
     }
 
-    private void asyncLogin(T data) throws IllegalAccessException, InvocationTargetException{
-        for (Method method : asyncLoginMethods){
-            method.invoke(data);
-        }
+    private void asyncSave(T data) throws InvocationTargetException{
+        asyncSaveMethods.invoke(data);
+    }
+
+    private void syncLogin(T data) throws InvocationTargetException{
+        syncLoginMethods.invoke(data);
+    }
+
+    private void asyncLogin(T data) throws InvocationTargetException{
+        asyncLoginMethods.invoke(data);
     }
 
     public CacheManager<T> getCacheManager() {
@@ -332,5 +1191,18 @@ public class SessionCache<T extends CachedData> extends SessionDependency implem
     Cache<UUID, T> getCache() {
         return cache;
     }
-}
 
+    private class Prefetch {
+        private final T data;
+        private final long created;
+
+        private Prefetch(T data){
+            this.data = data;
+            this.created = System.nanoTime();
+        }
+
+        private boolean isExpired(long now){
+            return now - created > TimeUnit.MILLISECONDS.toNanos(GlobalConfig.intent_expiry);
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package net.crashcraft.sessionmanager.cache;
+
+import co.aikar.idb.DbRow;
+import net.crashcraft.sessionmanager.database.DatabaseLane;
+import net.crashcraft.sessionmanager.database.UuidCodec;
+import org.bukkit.Bukkit;
+import org.bukkit.plugin.java.JavaPlugin;
+
+import java.sql.Blob;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/*
+ * Cache state written by the server closing a session for the next server to pick up instead of loading it again. A
+ * snapshot is only read once, and only while it is younger than the max age, so it can never be older than the database.
+ */
+public class SnapshotStore {
+    private final JavaPlugin plugin;
+    private final DatabaseLane lane;
+    private final UuidCodec uuids;
+    private final int maxAge;
+
+    private boolean created;
+
+    public SnapshotStore(JavaPlugin plugin, DatabaseLane lane, UuidCodec uuids, int maxAge){ // Seconds, a handoff takes far less
+        this.plugin = plugin;
+        this.lane = lane;
+        this.uuids = uuids;
+        this.maxAge = maxAge;
+    }
+
+    synchronized void createTable() throws SQLException {
+        if (created){
+            return;
+        }
+
+        lane.getDatabase().executeUpdate("CREATE TABLE IF NOT EXISTS session_snapshots (" +
+                "uuid " + uuids.getColumnType() + " NOT NULL, " +
+                "cache VARCHAR(64) NOT NULL, " +
+                "version INT NOT NULL, " +
+                "data MEDIUMBLOB NOT NULL, " +
+                "created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                "PRIMARY KEY (uuid, cache), " +
+                "INDEX (created));");
+
+        // Players that quit for good leave their last snapshot behind
+        Bukkit.getScheduler().runTaskTimerAsynchronously(plugin, this::purge, 1200L, 1200L);
+        created = true;
+    }
+
+    void write(String cache, UUID uuid, int version, byte[] data) throws SQLException {
+        lane.query("snapshot_write", db -> db.executeUpdate("REPLACE INTO session_snapshots (uuid, cache, version, data) VALUES (?, ?, ?, ?);",
+                uuids.encode(uuid), cache, version, data));
+    }
+
+    void delete(String cache, UUID uuid) throws SQLException {
+        lane.query("snapshot_delete", db -> db.executeUpdate("DELETE FROM session_snapshots WHERE uuid = ? AND cache = ?;", uuids.encode(uuid), cache));
+    }
+
+    /*
+     * Returns and removes the snapshot if there is a fresh one written with this version, null otherwise
+     */
+    byte[] take(String cache, UUID uuid, int version) throws SQLException {
+        DbRow row = lane.query("snapshot_take", db -> db.getFirstRow("SELECT data FROM session_snapshots WHERE uuid = ? AND cache = ? AND version = ? AND created > TIMESTAMPADD(SECOND, ?, NOW());",
+                uuids.encode(uuid), cache, version, -maxAge));
+        if (row == null){
+            return null;
+        }
+
+        delete(cache, uuid);
+
+        Object data = row.get("data");
+        if (data instanceof Blob){ // Drivers differ in how they hand out blobs
+            Blob blob = (Blob) data;
+            return blob.getBytes(1, (int) blob.length());
+        }
+        return (byte[]) data;
+    }
+
+    private void purge(){
+        try {
+            lane.query("snapshot_purge", db -> db.executeUpdate("DELETE FROM session_snapshots WHERE created < TIMESTAMPADD(SECOND, ?, NOW());", -maxAge));
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+}
@@ -18,4 +18,148 @@ public class GlobalConfig extends BaseConfig{
         sql_db = getString("sql.db", "");
         sql_ip = getString("sql.ip", "");
     }
+
+    public static String handoff_transport;
+    public static int handoff_poll;
+    public static int handoff_fallback_poll;
+    public static int handoff_timeout;
+
+    private static void onHandoff(){
+        handoff_transport = getString("handoff.transport", "database");
+        handoff_poll = getInt("handoff.poll-interval", 20);
+        handoff_fallback_poll = getInt("handoff.fallback-poll-interval", 1000);
+        handoff_timeout = getInt("handoff.timeout", 30000); // Milliseconds a second login of the same player waits on the first
+    }
+
+    public static int sweeper_min_interval;
+    public static int sweeper_max_interval;
+    public static int sweeper_empty_interval;
+
+    private static void onSweeper(){
+        sweeper_min_interval = getInt("sweeper.min-interval", 100);
+        sweeper_max_interval = getInt("sweeper.max-interval", 250); // While this server holds sessions, bounds how late a handoff away from it starts
+        sweeper_empty_interval = getInt("sweeper.empty-interval", 2000); // Without sessions there is nothing another server could mark closing
+    }
+
+    public static int player_id_cache_size;
+
+    private static void onPlayerCache(){
+        player_id_cache_size = getInt("player-id-cache.capacity", 10000);
+    }
+
+    public static int dependency_timeout;
+
+    private static void onDependency(){
+        dependency_timeout = getInt("dependency.timeout", 10000);
+    }
+
+    public static int journal_segment_size;
+    public static int journal_max_segments;
+    public static int journal_state_interval;
+
+    private static void onJournal(){
+        journal_segment_size = getInt("journal.segment-size-kb", 4096);
+        journal_max_segments = getInt("journal.max-segments", 4);
+        journal_state_interval = getInt("journal.state-interval", 20);
+    }
+
+    public static String metrics_file;
+    public static int metrics_interval;
+
+    private static void onMetrics(){
+        metrics_file = getString("metrics.export-file", "metrics.prom");
+        metrics_interval = getInt("metrics.export-interval", 15);
+    }
+
+    public static int admission_max_concurrent;
+    public static int admission_max_wait;
+    public static String admission_kick_message;
+
+    private static void onAdmission(){
+        admission_max_concurrent = getInt("admission.max-concurrent", 8);
+        admission_max_wait = getInt("admission.max-wait", 10000);
+        admission_kick_message = getString("admission.kick-message", "Too many players are joining right now, please try again in a moment");
+    }
+
+    public static int database_login_connections;
+    public static int database_background_connections;
+    public static int database_background_busy_limit;
+    public static long database_write_window;
+    public static boolean database_binary_uuids;
+    public static boolean database_migrate_uuids;
+
+    private static void onDatabase(){
+        database_login_connections = getInt("database.login-connections", 4);
+        database_background_connections = getInt("database.background-connections", 6);
+        database_background_busy_limit = getInt("database.background-busy-limit", 2);
+        database_write_window = getInt("database.write-window", 0); // Milliseconds to gather session writes before flushing, 0 flushes when idle
+        database_binary_uuids = getBoolean("database.binary-uuids", false);
+        database_migrate_uuids = getBoolean("database.migrate-uuids", false); // Converts players.uuid on start, one way
+    }
+
+    public static int cache_capacity;
+    public static int cache_orphan_expiry;
+    public static int cache_sweep_interval;
+    public static int cache_offline_capacity;
+    public static int cache_offline_ttl;
+    public static int cache_snapshot_max_age;
+
+    private static void onCache(){
+        cache_capacity = getInt("cache.capacity", 5000); // Per cache, only entries without an online player are evicted to stay under it
+        cache_orphan_expiry = getInt("cache.orphan-expiry", 300);
+        cache_sweep_interval = getInt("cache.sweep-interval", 30);
+        cache_offline_capacity = getInt("cache.offline-capacity", 1000);
+        cache_offline_ttl = getInt("cache.offline-ttl", 30);
+        cache_snapshot_max_age = getInt("cache.snapshot-max-age", 30);
+    }
+
+    public static int remote_min_interval;
+    public static int remote_max_interval;
+    public static int remote_expiry;
+
+    private static void onRemote(){
+        remote_min_interval = getInt("remote-requests.min-interval", 250);
+        remote_max_interval = getInt("remote-requests.max-interval", 5000);
+        remote_expiry = getInt("remote-requests.expiry", 300);
+    }
+
+    public static int intent_poll;
+    public static int intent_expiry;
+    public static String intent_secret;
+    public static int intent_max_per_sender;
+
+    private static void onIntent(){
+        intent_poll = getInt("intent.poll-interval", 0); // Milliseconds between reads of session_intents, 0 only listens for plugin messages
+        intent_expiry = getInt("intent.expiry", 15000);
+        intent_secret = getString("intent.secret", ""); // Sent by the proxy ahead of each plugin message intent, empty ignores them
+        intent_max_per_sender = getInt("intent.max-per-sender", 100); // Plugin message intents one player can carry per expiry window
+    }
+
+    public static int shutdown_deadline;
+    public static int shutdown_workers;
+
+    private static void onShutdown(){
+        shutdown_deadline = getInt("shutdown.deadline", 30000); // Milliseconds for the whole flush, including waiting on the sweeper
+        shutdown_workers = getInt("shutdown.workers", 8);
+    }
+
+    public static int sync_tick_budget;
+
+    private static void onSync(){
+        sync_tick_budget = getInt("sync.tick-budget", 5); // Milliseconds of SYNC cache hooks per tick, at least one always runs
+    }
+
+    public static int registry_reconcile_interval;
+
+    private static void onRegistry(){
+        registry_reconcile_interval = getInt("registry.reconcile-interval", 60); // Seconds between checking the session registry against the database, 0 never checks
+    }
+
+    public static int lease_duration;
+    public static int lease_renew_interval;
+
+    private static void onLease(){
+        lease_duration = getInt("lease.duration", 30); // Seconds a session is held without renewal before other servers take it over
+        lease_renew_interval = getInt("lease.renew-interval", 10);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,69 @@
+package net.crashcraft.sessionmanager.database;
+
+import net.crashcraft.sessionmanager.metrics.LatencyHistogram;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+
+/*
+ * Limits how much bulk background work runs at once. While logins are in progress only a few bulk saves may run, the
+ * rest wait so the database spends its time on the players that are waiting to join.
+ */
+public class BackgroundThrottle {
+    private static final long RECHECK = 50; // Login pressure changes too often to signal on, waiters look again this often
+
+    private final int limit;
+    private final int busyLimit;
+    private final IntSupplier loginPressure;
+    private final Object lock;
+    private final LatencyHistogram waitTime;
+    private final LongAdder throttled;
+
+    private int running;
+
+    public BackgroundThrottle(int limit, int busyLimit, IntSupplier loginPressure, SessionMetrics metrics){
+        this.limit = Math.max(1, limit);
+        this.busyLimit = Math.max(1, Math.min(busyLimit, limit));
+        this.loginPressure = loginPressure;
+        this.lock = new Object();
+        this.waitTime = metrics.histogram("sessionmanager_db_background_wait_seconds");
+        this.throttled = metrics.counter("sessionmanager_db_background_throttled_total");
+
+        metrics.gauge("sessionmanager_db_background_running", this::getRunning);
+    }
+
+    public void enter() throws InterruptedException {
+        synchronized (lock){
+            if (running < currentLimit()){
+                running++;
+                return;
+            }
+
+            throttled.increment();
+            long start = System.nanoTime();
+            while (running >= currentLimit()){
+                lock.wait(RECHECK);
+            }
+            running++;
+            waitTime.recordSince(start);
+        }
+    }
+
+    public void leave(){
+        synchronized (lock){
+            running--;
+            lock.notifyAll();
+        }
+    }
+
+    public int getRunning(){
+        synchronized (lock){
+            return running;
+        }
+    }
+
+    private int currentLimit(){
+        return loginPressure.getAsInt() > 0 ? busyLimit : limit;
+    }
+}
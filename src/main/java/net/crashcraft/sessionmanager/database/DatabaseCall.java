@@ -0,0 +1,9 @@
+package net.crashcraft.sessionmanager.database;
+
+import co.aikar.idb.Database;
+
+import java.sql.SQLException;
+
+public interface DatabaseCall<T> {
+    T call(Database database) throws SQLException;
+}
@@ -0,0 +1,54 @@
+package net.crashcraft.sessionmanager.database;
+
+import co.aikar.idb.Database;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * A connection pool kept for one kind of work, so logins and handoffs never queue behind bulk saves for a connection.
+ * Queries are timed by name through SessionMetrics and the lane tracks how busy it is.
+ */
+public class DatabaseLane {
+    private final String name;
+    private final Database database;
+    private final SessionMetrics metrics;
+    private final AtomicInteger active;
+    private final LongAdder busyTime;
+
+    public DatabaseLane(String name, Database database, int connections, SessionMetrics metrics){
+        this.name = name;
+        this.database = database;
+        this.metrics = metrics;
+        this.active = new AtomicInteger();
+        this.busyTime = metrics.counter("sessionmanager_db_lane_busy_nanoseconds_total", "lane", name);
+
+        metrics.gauge("sessionmanager_db_lane_active", active::get, "lane", name);
+        metrics.gauge("sessionmanager_db_lane_connections", () -> connections, "lane", name);
+    }
+
+    public <T> T query(String query, DatabaseCall<T> call) throws SQLException {
+        active.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            return metrics.query(query, () -> call.call(database));
+        } finally {
+            busyTime.add(System.nanoTime() - start);
+            active.decrementAndGet();
+        }
+    }
+
+    public int getActive(){
+        return active.get();
+    }
+
+    public String getName(){
+        return name;
+    }
+
+    public Database getDatabase(){
+        return database;
+    }
+}
@@ -0,0 +1,66 @@
+package net.crashcraft.sessionmanager.database;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+
+/*
+ * How uuids are stored, either the 36 character text form or 16 raw bytes. Decoding accepts both so tables filled by
+ * other services or from before a migration can still be read, without going through a String.
+ */
+public final class UuidCodec {
+    private final boolean binary;
+
+    public UuidCodec(boolean binary){
+        this.binary = binary;
+    }
+
+    public boolean isBinary(){
+        return binary;
+    }
+
+    public String getColumnType(){
+        return binary ? "BINARY(16)" : "VARBINARY(36)";
+    }
+
+    public Object encode(UUID uuid){
+        if (!binary){
+            return uuid.toString();
+        }
+
+        return ByteBuffer.allocate(16)
+                .putLong(uuid.getMostSignificantBits())
+                .putLong(uuid.getLeastSignificantBits())
+                .array();
+    }
+
+    public static UUID decode(Object value){
+        if (value instanceof String){
+            return UUID.fromString((String) value);
+        }
+
+        byte[] bytes = (byte[]) value;
+        if (bytes.length == 16){
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            return new UUID(buffer.getLong(), buffer.getLong());
+        }
+
+        if (bytes.length != 36 || bytes[8] != '-' || bytes[13] != '-' || bytes[18] != '-' || bytes[23] != '-'){
+            throw new IllegalArgumentException("Not a uuid, " + bytes.length + " bytes");
+        }
+
+        return new UUID(hex(bytes, 0, 8) << 32 | hex(bytes, 9, 13) << 16 | hex(bytes, 14, 18),
+                hex(bytes, 19, 23) << 48 | hex(bytes, 24, 36));
+    }
+
+    private static long hex(byte[] bytes, int from, int to){
+        long value = 0;
+        for (int x = from; x < to; x++){
+            int digit = Character.digit(bytes[x], 16);
+            if (digit < 0){
+                throw new IllegalArgumentException("Not a uuid, bad digit at " + x);
+            }
+            value = value << 4 | digit;
+        }
+        return value;
+    }
+}
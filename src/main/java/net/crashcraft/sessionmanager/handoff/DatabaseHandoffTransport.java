@@ -0,0 +1,85 @@
+package net.crashcraft.sessionmanager.handoff;
+
+import co.aikar.idb.DbRow;
+import net.crashcraft.sessionmanager.database.DatabaseLane;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Releases are appended to a shared table and read back with a cursor, one query per server covers every waiting player
+ * and no query is made at all while nobody is waiting.
+ */
+public class DatabaseHandoffTransport implements HandoffTransport {
+    private final long pollInterval;
+    private final DatabaseLane lane;
+
+    private ScheduledExecutorService executor;
+    private HandoffListener listener;
+    private long cursor;
+
+    public DatabaseHandoffTransport(long pollInterval, DatabaseLane lane){
+        this.pollInterval = pollInterval;
+        this.lane = lane;
+    }
+
+    @Override
+    public void start(HandoffListener listener) throws SQLException {
+        this.listener = listener;
+
+        lane.getDatabase().executeUpdate("CREATE TABLE IF NOT EXISTS session_handoff (" +
+                "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                "player_id INT NOT NULL, " +
+                "released TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                "INDEX (released));");
+
+        Number max = lane.getDatabase().getFirstColumn("SELECT COALESCE(MAX(id), 0) FROM session_handoff;");
+        cursor = max == null ? 0 : max.longValue();
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SessionManager Handoff");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::purge, 60, 60, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public void publishRelease(int player_id) throws SQLException {
+        lane.query("handoff_publish", db -> db.executeInsert("INSERT INTO session_handoff (player_id) VALUES (?);", player_id));
+    }
+
+    @Override
+    public void close() {
+        if (executor != null){
+            executor.shutdownNow();
+        }
+    }
+
+    private void poll(){
+        if (!listener.isWaiting()){
+            return;
+        }
+
+        try {
+            for (DbRow row : lane.query("handoff_poll", db -> db.getResults("SELECT id, player_id FROM session_handoff WHERE id > ? ORDER BY id;", cursor))){
+                cursor = row.getLong("id");
+                listener.onSessionReleased(row.getInt("player_id"));
+            }
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void purge(){
+        try {
+            lane.query("handoff_purge", db -> db.executeUpdate("DELETE FROM session_handoff WHERE released < TIMESTAMPADD(SECOND, -60, NOW());"));
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+}
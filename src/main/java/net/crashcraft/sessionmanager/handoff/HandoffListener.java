@@ -0,0 +1,7 @@
+package net.crashcraft.sessionmanager.handoff;
+
+public interface HandoffListener {
+    void onSessionReleased(int player_id);
+
+    boolean isWaiting(); // Lets transports stay idle when no pre-login is waiting on a handoff
+}
@@ -0,0 +1,11 @@
+package net.crashcraft.sessionmanager.handoff;
+
+import java.sql.SQLException;
+
+public interface HandoffTransport {
+    void start(HandoffListener listener) throws SQLException;
+
+    void publishRelease(int player_id) throws SQLException; // Called by the closing server once the session row is gone
+
+    void close();
+}
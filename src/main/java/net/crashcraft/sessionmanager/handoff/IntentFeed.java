@@ -0,0 +1,150 @@
+package net.crashcraft.sessionmanager.handoff;
+
+import co.aikar.idb.DbRow;
+import net.crashcraft.sessionmanager.database.DatabaseLane;
+import net.crashcraft.sessionmanager.database.UuidCodec;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.messaging.PluginMessageListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/*
+ * Hears from the proxy that a player is about to switch to this server, so their data can start loading while the old
+ * server is still closing their session. The proxy sends the configured secret and then the uuid, both written with
+ * writeUTF, on the sessionmanager:intent channel, or inserts it for servers that may be empty as plugin messages need a
+ * player online to carry them:
+ *
+ * INSERT INTO session_intents (uuid, server) VALUES ('<uuid>', '<server-name>');
+ *
+ * The table is only read when a poll interval is configured. Clients can send on the channel too, so plugin messages
+ * without the secret are dropped, none are accepted while no secret is configured, and each player carrying them only
+ * gets so many intents per expiry window.
+ */
+public class IntentFeed implements PluginMessageListener {
+    public static final String CHANNEL = "sessionmanager:intent";
+
+    private final DatabaseLane lane;
+    private final String serverName;
+    private final long pollInterval;
+    private final byte[] secret; // Null drops every plugin message
+    private final int maxPerSender;
+    private final long window;
+    private final Consumer<UUID> listener;
+    private final Logger logger;
+    private final Map<UUID, Integer> received; // Per carrying player in the current window, only touched on the main thread
+
+    private ScheduledExecutorService executor;
+    private long cursor;
+    private long windowStart;
+
+    public IntentFeed(DatabaseLane lane, String serverName, long pollInterval, String secret, int maxPerSender, long window,
+                      Consumer<UUID> listener, Logger logger){
+        this.lane = lane;
+        this.serverName = serverName;
+        this.pollInterval = pollInterval;
+        this.secret = secret == null || secret.isEmpty() ? null : secret.getBytes(StandardCharsets.UTF_8);
+        this.maxPerSender = maxPerSender;
+        this.window = window;
+        this.listener = listener;
+        this.logger = logger;
+        this.received = new HashMap<>();
+
+        if (this.secret == null){
+            logger.warning("No intent.secret is configured, session intents sent as plugin messages are ignored");
+        }
+    }
+
+    public void start() throws SQLException {
+        if (pollInterval <= 0){
+            return;
+        }
+
+        lane.getDatabase().executeUpdate("CREATE TABLE IF NOT EXISTS session_intents (" +
+                "id BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY, " +
+                "uuid VARBINARY(36) NOT NULL, " +
+                "server VARCHAR(64) NOT NULL, " +
+                "created TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP, " +
+                "INDEX (created));");
+
+        Number max = lane.getDatabase().getFirstColumn("SELECT COALESCE(MAX(id), 0) FROM session_intents;");
+        cursor = max == null ? 0 : max.longValue();
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SessionManager Intents");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        executor.scheduleWithFixedDelay(this::poll, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::purge, 60, 60, TimeUnit.SECONDS);
+    }
+
+    public void close(){
+        if (executor != null){
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void onPluginMessageReceived(String channel, Player player, byte[] message){
+        if (!CHANNEL.equals(channel) || secret == null){
+            return;
+        }
+
+        UUID uuid;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(message));
+            if (!MessageDigest.isEqual(secret, in.readUTF().getBytes(StandardCharsets.UTF_8))){
+                logger.warning("Ignoring a session intent carried by " + player.getName() + " without the proxy secret");
+                return;
+            }
+            uuid = UUID.fromString(in.readUTF());
+        } catch (IOException|IllegalArgumentException e){
+            logger.warning("Ignoring a malformed session intent, expected the secret and a uuid written with writeUTF");
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (now - windowStart >= window){
+            windowStart = now;
+            received.clear();
+        }
+
+        if (received.merge(player.getUniqueId(), 1, Integer::sum) > maxPerSender){
+            return; // Whatever it was moving here gets loaded on login
+        }
+        listener.accept(uuid);
+    }
+
+    private void poll(){
+        try {
+            for (DbRow row : lane.query("intent_poll", db -> db.getResults("SELECT id, uuid FROM session_intents WHERE id > ? AND server = ? ORDER BY id;", cursor, serverName))){
+                cursor = row.getLong("id");
+                listener.accept(UuidCodec.decode(row.get("uuid")));
+            }
+        } catch (SQLException|IllegalArgumentException e){
+            e.printStackTrace();
+        }
+    }
+
+    private void purge(){
+        try {
+            lane.query("intent_purge", db -> db.executeUpdate("DELETE FROM session_intents WHERE created < TIMESTAMPADD(SECOND, -60, NOW());"));
+        } catch (SQLException e){
+            e.printStackTrace();
+        }
+    }
+}
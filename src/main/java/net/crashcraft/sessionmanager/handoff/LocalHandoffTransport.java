@@ -0,0 +1,32 @@
+package net.crashcraft.sessionmanager.handoff;
+
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/*
+ * In-JVM transport, a single instance can be shared between multiple handoffs to simulate a network in tests
+ */
+public class LocalHandoffTransport implements HandoffTransport {
+    private final Set<HandoffListener> listeners;
+
+    public LocalHandoffTransport(){
+        this.listeners = new CopyOnWriteArraySet<>();
+    }
+
+    @Override
+    public void start(HandoffListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void publishRelease(int player_id) {
+        for (HandoffListener listener : listeners){
+            listener.onSessionReleased(player_id);
+        }
+    }
+
+    @Override
+    public void close() {
+        listeners.clear();
+    }
+}
@@ -0,0 +1,104 @@
+package net.crashcraft.sessionmanager.handoff;
+
+import java.sql.SQLException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+public class SessionHandoff implements HandoffListener {
+    private final HandoffTransport transport;
+    private final ClosingCheck closingCheck;
+    private final long fallbackPoll;
+    private final Logger logger;
+
+    private final ConcurrentHashMap<Integer, CompletableFuture<Void>> waiters;
+
+    private volatile Runnable activityListener;
+
+    public SessionHandoff(HandoffTransport transport, ClosingCheck closingCheck, long fallbackPoll, Logger logger){
+        this.transport = transport;
+        this.closingCheck = closingCheck;
+        this.fallbackPoll = fallbackPoll;
+        this.logger = logger;
+        this.waiters = new ConcurrentHashMap<>();
+    }
+
+    public void start() throws SQLException {
+        transport.start(this);
+    }
+
+    public void close(){
+        transport.close();
+
+        for (CompletableFuture<Void> future : waiters.values()){
+            future.complete(null); // Wake everyone up so they re-check against the database
+        }
+        waiters.clear();
+    }
+
+    /*
+     * Blocks until no closing session exists for the player anywhere on the network.
+     * The waiter is registered before the check so a release signalled in between is never missed,
+     * if a signal is lost anyway the fallback poll picks it up.
+     */
+    public void awaitRelease(int player_id) throws SQLException, InterruptedException {
+        while (true){
+            CompletableFuture<Void> future = waiters.computeIfAbsent(player_id, id -> new CompletableFuture<>());
+
+            if (!closingCheck.hasClosingSession(player_id)){
+                waiters.remove(player_id, future);
+                return;
+            }
+
+            try {
+                future.get(fallbackPoll, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException|ExecutionException ignored){
+                // Fallback poll, loop around and check the database again
+            }
+        }
+    }
+
+    public void publishRelease(int player_id){
+        try {
+            transport.publishRelease(player_id);
+        } catch (SQLException e){
+            logger.warning("Unable to publish session release for player id " + player_id + ", waiting servers will fall back to polling");
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void onSessionReleased(int player_id) {
+        CompletableFuture<Void> future = waiters.remove(player_id);
+        if (future != null){
+            future.complete(null);
+        }
+
+        Runnable listener = activityListener;
+        if (listener != null){
+            listener.run();
+        }
+    }
+
+    public void setActivityListener(Runnable activityListener) {
+        this.activityListener = activityListener;
+    }
+
+    @Override
+    public boolean isWaiting() {
+        return !waiters.isEmpty();
+    }
+
+    public Set<Integer> getWaiting() {
+        return new HashSet<>(waiters.keySet());
+    }
+
+    public interface ClosingCheck {
+        boolean hasClosingSession(int player_id) throws SQLException;
+    }
+}
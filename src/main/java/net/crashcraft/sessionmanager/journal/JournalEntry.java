@@ -0,0 +1,56 @@
+package net.crashcraft.sessionmanager.journal;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/*
+ * What the journal knows about one player, an open session and any cache state that was not saved yet
+ */
+public class JournalEntry {
+    private final UUID uuid;
+    private int player_id;
+    private boolean open;
+    private final Map<String, JournalState> states;
+
+    JournalEntry(UUID uuid){
+        this.uuid = uuid;
+        this.states = new HashMap<>();
+    }
+
+    private JournalEntry(JournalEntry entry){
+        this.uuid = entry.uuid;
+        this.player_id = entry.player_id;
+        this.open = entry.open;
+        this.states = new HashMap<>(entry.states);
+    }
+
+    JournalEntry copy(){
+        return new JournalEntry(this);
+    }
+
+    void open(int player_id){
+        this.player_id = player_id;
+        this.open = true;
+    }
+
+    boolean isEmpty(){
+        return !open && states.isEmpty();
+    }
+
+    Map<String, JournalState> getStates() {
+        return states;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getPlayerID() {
+        return player_id;
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+}
@@ -0,0 +1,54 @@
+package net.crashcraft.sessionmanager.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/*
+ * Fixed size memory mapped journal file. Records are written as [length][body][crc32], a zero length marks the end
+ * and a bad checksum marks a torn write from a crash, reading stops at either.
+ */
+class JournalSegment {
+    private final long sequence;
+    private final File file;
+    private final MappedByteBuffer buffer;
+
+    JournalSegment(long sequence, File file, int size) throws IOException {
+        this.sequence = sequence;
+        this.file = file;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)){
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    boolean hasRoom(int length){
+        return buffer.remaining() >= length + 12; // length, crc and the zero length end marker
+    }
+
+    void append(byte[] body, int length, int crc){
+        buffer.putInt(length);
+        buffer.put(body, 0, length);
+        buffer.putInt(crc);
+    }
+
+    MappedByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    void force(){
+        buffer.force();
+    }
+
+    void delete(){
+        if (!file.delete()){
+            file.deleteOnExit();
+        }
+    }
+
+    long getSequence() {
+        return sequence;
+    }
+}
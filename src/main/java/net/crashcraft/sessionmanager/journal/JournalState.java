@@ -0,0 +1,33 @@
+package net.crashcraft.sessionmanager.journal;
+
+import java.util.UUID;
+
+public class JournalState {
+    private final String cache;
+    private final UUID uuid;
+    private final int version;
+    private final byte[] data;
+
+    JournalState(String cache, UUID uuid, int version, byte[] data){
+        this.cache = cache;
+        this.uuid = uuid;
+        this.version = version;
+        this.data = data;
+    }
+
+    public String getCache() {
+        return cache;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+}
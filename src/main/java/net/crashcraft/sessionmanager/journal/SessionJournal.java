@@ -0,0 +1,412 @@
+package net.crashcraft.sessionmanager.journal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/*
+ * Append only local journal of session transitions and unsaved cache state. Appends go straight into a memory mapped
+ * segment so they survive a process crash, on the next start the journal is replayed so the lost state can be flushed.
+ * Whatever is still live is rewritten into a fresh segment in the background once too many segments pile up, outside of
+ * the lock so appends never wait on it.
+ */
+public class SessionJournal {
+    private static final byte OPEN = 1;
+    private static final byte CLOSE = 2;
+    private static final byte STATE = 3;
+    private static final byte SAVED = 4;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final Logger logger;
+
+    private final Object lock;
+    private final Map<UUID, JournalEntry> live;
+    private final Deque<JournalSegment> segments;
+    private final CRC32 crc;
+    private ByteBuffer scratch;
+    private JournalSegment current;
+    private long sequence;
+
+    private final Map<UUID, JournalEntry> recovered;
+    private final List<CompletableFuture<Void>> recoveries;
+    private ScheduledExecutorService executor;
+
+    public SessionJournal(File directory, int segmentSize, int maxSegments, Logger logger){
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(1, maxSegments);
+        this.logger = logger;
+
+        this.lock = new Object();
+        this.live = new HashMap<>();
+        this.segments = new ArrayDeque<>();
+        this.crc = new CRC32();
+        this.scratch = ByteBuffer.allocate(256);
+
+        this.recovered = new HashMap<>();
+        this.recoveries = new ArrayList<>();
+    }
+
+    /*
+     * Replays every segment left on disk and returns the players whose session or cache state was not closed out
+     */
+    public Collection<JournalEntry> recover() throws IOException {
+        if (!directory.exists() && !directory.mkdirs()){
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.startsWith("segment-") && name.endsWith(".journal"));
+        if (files == null){
+            files = new File[0];
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(parseSequence(a), parseSequence(b)));
+
+        synchronized (lock){
+            for (File file : files){
+                JournalSegment segment = new JournalSegment(parseSequence(file), file, segmentSize);
+                replay(segment);
+                segments.add(segment);
+                sequence = Math.max(sequence, segment.getSequence());
+            }
+
+            synchronized (recovered){
+                for (JournalEntry entry : live.values()){
+                    recovered.put(entry.getUuid(), entry.copy());
+                }
+            }
+        }
+
+        compact();
+
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "SessionManager Journal");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.SECONDS);
+
+        synchronized (recovered){
+            return new ArrayList<>(recovered.values());
+        }
+    }
+
+    public void shutdown(){
+        if (executor != null){
+            executor.shutdownNow();
+        }
+
+        synchronized (lock){
+            if (current != null){
+                current.force();
+            }
+        }
+    }
+
+    public void open(UUID uuid, int player_id){
+        synchronized (lock){
+            start(OPEN, uuid).putInt(player_id);
+            append();
+        }
+    }
+
+    public void close(UUID uuid){
+        synchronized (lock){
+            start(CLOSE, uuid);
+            append();
+        }
+    }
+
+    public void state(String cache, UUID uuid, int version, byte[] data){
+        synchronized (lock){
+            start(STATE, uuid);
+            putString(cache);
+            ensure(8 + data.length).putInt(version).putInt(data.length).put(data);
+            append();
+        }
+    }
+
+    public void saved(String cache, UUID uuid){
+        synchronized (lock){
+            start(SAVED, uuid);
+            putString(cache);
+            append();
+        }
+    }
+
+    /*
+     * Hands over the recovered state of a cache, the cache is expected to flush it and report back through addRecovery
+     */
+    public List<JournalState> takeRecovered(String cache){
+        List<JournalState> states = new ArrayList<>();
+
+        synchronized (recovered){
+            for (JournalEntry entry : recovered.values()){
+                JournalState state = entry.getStates().remove(cache);
+                if (state != null){
+                    states.add(state);
+                }
+            }
+        }
+
+        return states;
+    }
+
+    public void addRecovery(CompletableFuture<Void> future){
+        synchronized (recoveries){
+            recoveries.add(future);
+        }
+    }
+
+    public CompletableFuture<Void> awaitRecovery(){
+        synchronized (recoveries){
+            return CompletableFuture.allOf(recoveries.toArray(new CompletableFuture[0]));
+        }
+    }
+
+    /*
+     * Drops what was recovered for a player whose session another server has taken over since, their data moved on
+     */
+    public void discardRecovered(UUID uuid){
+        synchronized (recovered){
+            recovered.remove(uuid);
+        }
+        close(uuid);
+    }
+
+    public boolean hasUnrecoveredState(UUID uuid){
+        synchronized (recovered){
+            JournalEntry entry = recovered.get(uuid);
+            return entry != null && !entry.getStates().isEmpty();
+        }
+    }
+
+    private ByteBuffer start(byte type, UUID uuid){
+        scratch.clear();
+        return scratch.put(type).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    private ByteBuffer ensure(int bytes){
+        if (scratch.remaining() < bytes){
+            ByteBuffer grown = ByteBuffer.allocate(Math.max(scratch.capacity() * 2, scratch.position() + bytes));
+            scratch.flip();
+            grown.put(scratch);
+            scratch = grown;
+        }
+        return scratch;
+    }
+
+    private void putString(String value){
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ensure(2 + bytes.length).putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer){
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void append(){
+        scratch.flip();
+        write();
+
+        scratch.rewind();
+        apply(scratch);
+    }
+
+    private void write(){ // Writes the record in scratch to the current segment
+        int length = scratch.remaining();
+
+        crc.reset();
+        crc.update(scratch.array(), 0, length);
+
+        try {
+            if (current == null || !current.hasRoom(length)){
+                roll(length);
+            }
+        } catch (IOException e){
+            logger.severe("Unable to roll session journal segment, record was not journaled");
+            e.printStackTrace();
+            return;
+        }
+
+        current.append(scratch.array(), length, (int) crc.getValue());
+    }
+
+    private void roll(int length) throws IOException {
+        sequence++;
+        current = new JournalSegment(sequence, new File(directory, String.format("segment-%016d.journal", sequence)), Math.max(segmentSize, length + 12));
+        segments.add(current);
+    }
+
+    private void replay(JournalSegment segment){
+        ByteBuffer buffer = segment.getBuffer().duplicate();
+        buffer.position(0);
+
+        while (buffer.remaining() >= 4){
+            int length = buffer.getInt();
+            if (length <= 0 || length + 4 > buffer.remaining()){
+                return; // End of the segment
+            }
+
+            byte[] body = new byte[length];
+            buffer.get(body);
+
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != buffer.getInt()){
+                logger.warning("Session journal segment " + segment.getSequence() + " has a torn record, ignoring the rest of it");
+                return;
+            }
+
+            apply(ByteBuffer.wrap(body));
+        }
+    }
+
+    private void apply(ByteBuffer record){
+        byte type = record.get();
+        UUID uuid = new UUID(record.getLong(), record.getLong());
+
+        switch (type){
+            case OPEN:
+                live.computeIfAbsent(uuid, JournalEntry::new).open(record.getInt());
+                break;
+            case CLOSE:
+                live.remove(uuid);
+                break;
+            case STATE: {
+                String cache = getString(record);
+                int version = record.getInt();
+                byte[] data = new byte[record.getInt()];
+                record.get(data);
+
+                live.computeIfAbsent(uuid, JournalEntry::new).getStates().put(cache, new JournalState(cache, uuid, version, data));
+                break;
+            }
+            case SAVED: {
+                JournalEntry entry = live.get(uuid);
+                if (entry != null){
+                    entry.getStates().remove(getString(record));
+                    if (entry.isEmpty()){
+                        live.remove(uuid);
+                    }
+                }
+                break;
+            }
+        }
+    }
+
+    private void maintain(){
+        boolean compact;
+        synchronized (lock){
+            if (current != null){
+                current.force();
+            }
+            compact = segments.size() > maxSegments;
+        }
+
+        if (compact){
+            compact();
+        }
+    }
+
+    /*
+     * Rewrites everything live into one fresh segment, old segments are only deleted once that is on disk. The compacted
+     * segment takes the next sequence and appends move on to the ones after it, so on replay it sits exactly between the
+     * records it replaces and the ones written while it was being built.
+     */
+    private void compact(){
+        List<JournalEntry> entries = new ArrayList<>();
+        List<JournalSegment> old;
+        long compactedSequence;
+
+        synchronized (lock){
+            for (JournalEntry entry : live.values()){
+                entries.add(entry.copy());
+            }
+            old = new ArrayList<>(segments);
+            compactedSequence = ++sequence;
+            current = null;
+        }
+
+        List<byte[]> records = new ArrayList<>();
+        int size = 4; // The end marker
+        for (JournalEntry entry : entries){
+            if (entry.isOpen()){
+                records.add(record(OPEN, entry.getUuid(), 4).putInt(entry.getPlayerID()).array());
+            }
+
+            for (JournalState state : entry.getStates().values()){
+                byte[] cache = state.getCache().getBytes(StandardCharsets.UTF_8);
+                records.add(record(STATE, entry.getUuid(), 2 + cache.length + 8 + state.getData().length)
+                        .putShort((short) cache.length).put(cache)
+                        .putInt(state.getVersion()).putInt(state.getData().length).put(state.getData()).array());
+            }
+        }
+
+        JournalSegment compacted = null;
+        if (!records.isEmpty()){
+            for (byte[] record : records){
+                size += record.length + 8;
+            }
+
+            try {
+                compacted = new JournalSegment(compactedSequence, new File(directory, String.format("segment-%016d.journal", compactedSequence)), Math.max(segmentSize, size));
+            } catch (IOException e){
+                logger.severe("Unable to create compacted session journal segment, keeping the old segments");
+                e.printStackTrace();
+                return;
+            }
+
+            CRC32 checksum = new CRC32();
+            for (byte[] record : records){
+                checksum.reset();
+                checksum.update(record, 0, record.length);
+                compacted.append(record, record.length, (int) checksum.getValue());
+            }
+            compacted.force();
+        }
+
+        synchronized (lock){
+            segments.removeAll(old);
+            if (compacted != null){
+                segments.addFirst(compacted);
+            }
+        }
+
+        for (JournalSegment segment : old){
+            segment.delete();
+        }
+    }
+
+    private static ByteBuffer record(byte type, UUID uuid, int body){
+        return ByteBuffer.allocate(17 + body).put(type).putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits());
+    }
+
+    private static long parseSequence(File file){
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring("segment-".length(), name.length() - ".journal".length()));
+        } catch (NumberFormatException e){
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package net.crashcraft.sessionmanager.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Lock free histogram with power of two microsecond buckets, from 1us up to ~67s with everything above in the last bucket.
+ * Recording is a couple of adds so it is safe to use on the login and hook hot paths.
+ */
+public class LatencyHistogram {
+    static final int BUCKETS = 28;
+
+    private final LongAdder[] counts;
+    private final LongAdder sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram(){
+        this.counts = new LongAdder[BUCKETS];
+        for (int x = 0; x < BUCKETS; x++){
+            counts[x] = new LongAdder();
+        }
+        this.sum = new LongAdder();
+        this.max = new AtomicLong();
+    }
+
+    public void record(long nanos){
+        if (nanos < 0){
+            return;
+        }
+
+        counts[bucket(nanos)].increment();
+        sum.add(nanos);
+
+        long current;
+        while (nanos > (current = max.get())){
+            if (max.compareAndSet(current, nanos)){
+                break;
+            }
+        }
+    }
+
+    public void recordSince(long startNanos){
+        record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount(){
+        long count = 0;
+        for (LongAdder adder : counts){
+            count += adder.sum();
+        }
+        return count;
+    }
+
+    public long getSum(){
+        return sum.sum();
+    }
+
+    public long getMax(){
+        return max.get();
+    }
+
+    public long percentile(double percentile){ // Upper bound of the bucket the percentile falls in, in nanos
+        long[] snapshot = snapshot();
+        long total = 0;
+        for (long count : snapshot){
+            total += count;
+        }
+
+        if (total == 0){
+            return 0;
+        }
+
+        long target = (long) Math.ceil(total * percentile);
+        long seen = 0;
+        for (int x = 0; x < snapshot.length; x++){
+            seen += snapshot[x];
+            if (seen >= target){
+                return Math.min(upperBound(x), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    long[] snapshot(){
+        long[] snapshot = new long[BUCKETS];
+        for (int x = 0; x < BUCKETS; x++){
+            snapshot[x] = counts[x].sum();
+        }
+        return snapshot;
+    }
+
+    static long upperBound(int bucket){ // Nanos
+        return (1L << bucket) * 1000L;
+    }
+
+    private static int bucket(long nanos){
+        long micros = nanos / 1000L;
+        if (micros <= 1){
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(micros - 1), BUCKETS - 1);
+    }
+}
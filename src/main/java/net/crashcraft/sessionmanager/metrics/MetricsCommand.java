@@ -0,0 +1,29 @@
+package net.crashcraft.sessionmanager.metrics;
+
+import org.bukkit.command.Command;
+import org.bukkit.command.CommandExecutor;
+import org.bukkit.command.CommandSender;
+
+import java.util.List;
+
+public class MetricsCommand implements CommandExecutor {
+    private final SessionMetrics metrics;
+
+    public MetricsCommand(SessionMetrics metrics){
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean onCommand(CommandSender sender, Command command, String label, String[] args) {
+        String filter = args.length > 0 ? args[0] : null;
+        List<String> lines = metrics.summary();
+
+        sender.sendMessage("Session metrics" + (filter == null ? "" : " matching " + filter) + ":");
+        for (String line : lines){
+            if (filter == null || line.contains(filter)){
+                sender.sendMessage(" " + line);
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+package net.crashcraft.sessionmanager.metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.logging.Logger;
+
+/*
+ * Writes the metrics in Prometheus text format, the file is replaced atomically so a textfile collector never reads half of it
+ */
+public class MetricsExporter implements Runnable {
+    private final SessionMetrics metrics;
+    private final File file;
+    private final Logger logger;
+
+    public MetricsExporter(SessionMetrics metrics, File file, Logger logger){
+        this.metrics = metrics;
+        this.file = file;
+        this.logger = logger;
+    }
+
+    @Override
+    public void run() {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(temp.toPath(), metrics.toPrometheus().getBytes(StandardCharsets.UTF_8));
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e){
+            logger.warning("Unable to export session metrics to " + file + ", " + e.getMessage());
+        }
+    }
+}
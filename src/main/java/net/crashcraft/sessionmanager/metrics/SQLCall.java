@@ -0,0 +1,7 @@
+package net.crashcraft.sessionmanager.metrics;
+
+import java.sql.SQLException;
+
+public interface SQLCall<T> {
+    T call() throws SQLException;
+}
@@ -0,0 +1,171 @@
+package net.crashcraft.sessionmanager.metrics;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/*
+ * Registry for everything the session manager measures. Look metrics up once and keep the reference, the lookup
+ * itself is not meant for hot paths apart from query() which keeps its own map.
+ */
+public class SessionMetrics {
+    private final Map<String, Metric<LatencyHistogram>> histograms;
+    private final Map<String, Metric<LongAdder>> counters;
+    private final Map<String, Metric<LongSupplier>> gauges;
+    private final Map<String, LatencyHistogram> queries;
+
+    public SessionMetrics(){
+        this.histograms = new ConcurrentSkipListMap<>();
+        this.counters = new ConcurrentSkipListMap<>();
+        this.gauges = new ConcurrentSkipListMap<>();
+        this.queries = new ConcurrentHashMap<>();
+    }
+
+    public LatencyHistogram histogram(String name, String... labels){
+        return histograms.computeIfAbsent(key(name, labels), k -> new Metric<>(name, labels(labels), new LatencyHistogram())).value;
+    }
+
+    public LongAdder counter(String name, String... labels){
+        return counters.computeIfAbsent(key(name, labels), k -> new Metric<>(name, labels(labels), new LongAdder())).value;
+    }
+
+    public void gauge(String name, LongSupplier supplier, String... labels){
+        gauges.put(key(name, labels), new Metric<>(name, labels(labels), supplier));
+    }
+
+    public <T> T query(String query, SQLCall<T> call) throws SQLException { // Times a database call under its query name
+        LatencyHistogram histogram = queries.get(query);
+        if (histogram == null){
+            histogram = queries.computeIfAbsent(query, q -> histogram("sessionmanager_db_seconds", "query", q));
+        }
+
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            histogram.recordSince(start);
+        }
+    }
+
+    public Map<String, Long> getQueryCounts(){
+        Map<String, Long> counts = new TreeMap<>();
+        for (Map.Entry<String, LatencyHistogram> entry : queries.entrySet()){
+            counts.put(entry.getKey(), entry.getValue().getCount());
+        }
+        return counts;
+    }
+
+    public String toPrometheus(){
+        StringBuilder builder = new StringBuilder();
+        String type = null;
+
+        for (Metric<LatencyHistogram> metric : histograms.values()){
+            if (!metric.name.equals(type)){
+                type = metric.name;
+                builder.append("# TYPE ").append(metric.name).append(" histogram\n");
+            }
+
+            long[] snapshot = metric.value.snapshot();
+            long cumulative = 0;
+            for (int x = 0; x < snapshot.length; x++){
+                cumulative += snapshot[x];
+                String le = x == snapshot.length - 1 ? "+Inf" : seconds(LatencyHistogram.upperBound(x));
+                builder.append(metric.name).append("_bucket{").append(metric.labels).append(metric.labels.isEmpty() ? "" : ",")
+                        .append("le=\"").append(le).append("\"} ").append(cumulative).append('\n');
+            }
+            builder.append(metric.name).append("_sum").append(braces(metric.labels)).append(' ').append(seconds(metric.value.getSum())).append('\n');
+            builder.append(metric.name).append("_count").append(braces(metric.labels)).append(' ').append(cumulative).append('\n');
+        }
+
+        type = null;
+        for (Metric<LongAdder> metric : counters.values()){
+            if (!metric.name.equals(type)){
+                type = metric.name;
+                builder.append("# TYPE ").append(metric.name).append(" counter\n");
+            }
+            builder.append(metric.name).append(braces(metric.labels)).append(' ').append(metric.value.sum()).append('\n');
+        }
+
+        type = null;
+        for (Metric<LongSupplier> metric : gauges.values()){
+            if (!metric.name.equals(type)){
+                type = metric.name;
+                builder.append("# TYPE ").append(metric.name).append(" gauge\n");
+            }
+            builder.append(metric.name).append(braces(metric.labels)).append(' ').append(metric.value.getAsLong()).append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    public List<String> summary(){
+        List<String> lines = new ArrayList<>();
+
+        for (Metric<LatencyHistogram> metric : histograms.values()){
+            LatencyHistogram histogram = metric.value;
+            long count = histogram.getCount();
+            if (count == 0){
+                continue;
+            }
+
+            lines.add(String.format(Locale.ROOT, "%s%s n=%d p50=%s p95=%s p99=%s max=%s", metric.name, braces(metric.labels), count,
+                    millis(histogram.percentile(0.5)), millis(histogram.percentile(0.95)), millis(histogram.percentile(0.99)), millis(histogram.getMax())));
+        }
+
+        for (Metric<LongAdder> metric : counters.values()){
+            lines.add(metric.name + braces(metric.labels) + " " + metric.value.sum());
+        }
+
+        for (Metric<LongSupplier> metric : gauges.values()){
+            lines.add(metric.name + braces(metric.labels) + " " + metric.value.getAsLong());
+        }
+
+        return lines;
+    }
+
+    private static String key(String name, String[] labels){
+        return name + " " + labels(labels); // Space sorts before any name character so metrics of the same name stay together
+    }
+
+    private static String labels(String[] labels){
+        StringBuilder builder = new StringBuilder();
+        for (int x = 0; x + 1 < labels.length; x += 2){
+            if (builder.length() > 0){
+                builder.append(',');
+            }
+            builder.append(labels[x]).append("=\"").append(labels[x + 1].replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String braces(String labels){
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String seconds(long nanos){
+        return String.format(Locale.ROOT, "%.6f", nanos / 1_000_000_000D);
+    }
+
+    private static String millis(long nanos){
+        return String.format(Locale.ROOT, "%.2fms", nanos / 1_000_000D);
+    }
+
+    private static class Metric<V> {
+        private final String name;
+        private final String labels;
+        private final V value;
+
+        private Metric(String name, String labels, V value){
+            this.name = name;
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertFalse;
+
+public class DependencyGraphTest {
+    private static final long TIMEOUT = 5000;
+
+    private DependencyGraph dependencies;
+    private CompletableFuture<Void> save;
+
+    @Before
+    public void setUp(){
+        dependencies = new DependencyGraph(Logger.getLogger("DependencyGraphTest"), new SessionMetrics());
+        save = new CompletableFuture<>();
+    }
+
+    @After
+    public void tearDown(){
+        save.complete(null);
+        dependencies.shutdown();
+    }
+
+    @Test
+    public void closeWaitsForADependencyPastItsDeadline() throws Exception {
+        CompletableFuture<Void> next = new CompletableFuture<>();
+        register("next", -1, uuid -> {
+            next.complete(null);
+            return null;
+        });
+        register("save", 100, uuid -> save, "next"); // Closes before next
+
+        CompletableFuture<Void> close = dependencies.close(UUID.randomUUID());
+
+        next.get(TIMEOUT, TimeUnit.MILLISECONDS); // The deadline still lets the ones after it close
+        Thread.sleep(200);
+        assertFalse("The close completed while the save was still running", close.isDone());
+
+        save.complete(null);
+        close.get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void failedDependencyStillCloses() throws Exception {
+        save.completeExceptionally(new IllegalStateException("Unable to save"));
+        register("save", 100, uuid -> save);
+
+        dependencies.close(UUID.randomUUID()).get(TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void register(String name, long timeout, Function<UUID, CompletableFuture<Void>> close, String... after){
+        dependencies.register(new SessionDependency() {
+            @Override
+            public void onSessionCreate(UUID player){
+            }
+
+            @Override
+            public void onSessionClose(UUID player){
+            }
+
+            @Override
+            public CompletableFuture<Void> onSessionCloseWithFuture(UUID player){
+                return close.apply(player);
+            }
+        }, name, timeout, after);
+    }
+}
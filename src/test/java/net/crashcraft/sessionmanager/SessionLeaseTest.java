@@ -0,0 +1,217 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.harness.ClusterSimulator;
+import net.crashcraft.sessionmanager.harness.MemoryDatabase;
+import net.crashcraft.sessionmanager.harness.SimulatedNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Leases and fencing tokens on real nodes sharing a memory database. A crashed server is a sessions row nobody renews,
+ * written straight into the database.
+ */
+public class SessionLeaseTest {
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private String database;
+    private Connection connection;
+    private List<SimulatedNode> nodes;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        database = "lease-" + DATABASES.incrementAndGet();
+        connection = DriverManager.getConnection(MemoryDatabase.url(database), "sa", ""); // Holds the database open for the test
+        nodes = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (SimulatedNode node : nodes){
+            node.stop();
+        }
+
+        try (Statement statement = connection.createStatement()){
+            statement.execute("DROP ALL OBJECTS;");
+        }
+        connection.close();
+    }
+
+    @Test(timeout = 30000)
+    public void takesOverAnExpiredLeaseALoginIsWaitingOn() throws Exception {
+        SimulatedNode node = start("live", 1);
+        UUID uuid = UUID.randomUUID();
+        int player_id = register(node, uuid, "expired");
+
+        insertDeadSession(player_id, 2, 5);
+
+        long start = System.currentTimeMillis();
+        assertTrue(node.join(uuid, "expired"));
+        long waited = System.currentTimeMillis() - start;
+
+        assertTrue("The login went through after " + waited + "ms, before the lease ran out", waited >= 1000);
+        assertEquals(1, counter(node, "sessionmanager_lease_takeovers_total"));
+        assertEquals(0, count("SELECT COUNT(*) FROM sessions WHERE server_id = ?;", serverID("dead")));
+
+        long fence = first("SELECT fence FROM sessions WHERE player_id = ? AND server_id = ?;", player_id, serverID("live"));
+        assertTrue("The new session kept fence " + fence + " of the dead one", fence > 5);
+        assertEquals(fence, first("SELECT fence FROM players WHERE id = ?;", player_id));
+    }
+
+    @Test(timeout = 30000)
+    public void leavesALiveLeaseAlone() throws Exception {
+        SimulatedNode node = start("live", 1);
+        UUID uuid = UUID.randomUUID();
+        int player_id = register(node, uuid, "renewed");
+
+        insertDeadSession(player_id, 60, 5);
+
+        CompletableFuture<Boolean> login = CompletableFuture.supplyAsync(() -> node.join(uuid, "renewed"));
+        Thread.sleep(2500); // A few renew intervals
+
+        assertFalse("The login took over a session whose lease had not run out", login.isDone());
+        assertEquals(1, count("SELECT COUNT(*) FROM sessions WHERE player_id = ? AND server_id = ?;", player_id, serverID("dead")));
+
+        update("UPDATE sessions SET lease_until = TIMESTAMPADD(SECOND, -1, NOW()) WHERE server_id = ?;", serverID("dead"));
+        assertTrue(login.get(10, TimeUnit.SECONDS));
+        assertEquals(1, counter(node, "sessionmanager_lease_takeovers_total"));
+    }
+
+    @Test(timeout = 30000)
+    public void dropsASessionTakenOverWhileOnline() throws Exception {
+        SimulatedNode node = start("live", 60); // No renew during the test, the leave has to find out on its own
+        UUID uuid = UUID.randomUUID();
+
+        assertTrue(node.join(uuid, "fenced"));
+        int player_id = playerID("fenced");
+        long fence = first("SELECT fence FROM sessions WHERE player_id = ?;", player_id);
+
+        // Another server takes the session over after our lease ran out
+        update("DELETE FROM sessions WHERE player_id = ?;", player_id);
+        update("UPDATE players SET fence = fence + 1 WHERE id = ?;", player_id);
+
+        node.quit(uuid);
+
+        assertEquals(1, counter(node, "sessionmanager_lease_lost_total"));
+        assertEquals("The leave wrote a session row back", 0, count("SELECT COUNT(*) FROM sessions WHERE player_id = ?;", player_id));
+
+        assertTrue("A fenced player has to be able to come back", node.join(uuid, "fenced"));
+        assertTrue(first("SELECT fence FROM sessions WHERE player_id = ?;", player_id) > fence + 1);
+    }
+
+    @Test(timeout = 30000)
+    public void fenceGoesUpWhenTheSessionMoves() throws Exception {
+        SimulatedNode from = start("from", 1);
+        SimulatedNode to = start("to", 1);
+        UUID uuid = UUID.randomUUID();
+
+        assertTrue(from.join(uuid, "moving"));
+        int player_id = playerID("moving");
+        long before = first("SELECT fence FROM sessions WHERE player_id = ? AND server_id = ?;", player_id, serverID("from"));
+
+        assertTrue(to.join(uuid, "moving")); // Waits for from to close the session
+        from.quit(uuid);
+
+        assertEquals(0, count("SELECT COUNT(*) FROM sessions WHERE player_id = ? AND server_id = ?;", player_id, serverID("from")));
+        long after = first("SELECT fence FROM sessions WHERE player_id = ? AND server_id = ?;", player_id, serverID("to"));
+        assertTrue("Fence went from " + before + " to " + after, after > before);
+        assertEquals(0, counter(from, "sessionmanager_lease_lost_total"));
+    }
+
+    private SimulatedNode start(String name, int renewInterval) throws Exception {
+        Map<String, Object> config = new HashMap<>();
+        config.put("handoff.transport", "database");
+        config.put("handoff.fallback-poll-interval", 200);
+        config.put("lease.duration", 30);
+        config.put("lease.renew-interval", renewInterval);
+
+        SimulatedNode node = ClusterSimulator.startNode(name, database, config);
+        nodes.add(node);
+        return node;
+    }
+
+    /*
+     * Creates the players row through a normal join and leave, returns their player id
+     */
+    private int register(SimulatedNode node, UUID uuid, String name) throws SQLException {
+        assertTrue(node.join(uuid, name));
+        node.quit(uuid);
+
+        int player_id = playerID(name);
+        assertEquals(0, count("SELECT COUNT(*) FROM sessions WHERE player_id = ?;", player_id));
+        return player_id;
+    }
+
+    /*
+     * A session of a server that crashed, its lease runs out in the given seconds and nobody renews it
+     */
+    private void insertDeadSession(int player_id, int lease, long fence) throws SQLException {
+        update("MERGE INTO servers (`name`) KEY (`name`) VALUES ('dead');");
+        update("UPDATE players SET fence = ? WHERE id = ?;", fence, player_id);
+        update("INSERT INTO sessions (player_id, server_id, isclosing, lease_until, fence) VALUES (?, ?, 0, TIMESTAMPADD(SECOND, ?, NOW()), ?);",
+                player_id, serverID("dead"), lease, fence);
+    }
+
+    private int playerID(String name) throws SQLException {
+        return (int) first("SELECT id FROM players WHERE username = ?;", name);
+    }
+
+    private int serverID(String name) throws SQLException {
+        return (int) first("SELECT id FROM servers WHERE `name` = ?;", name);
+    }
+
+    private long count(String sql, Object... params) throws SQLException {
+        return first(sql, params);
+    }
+
+    private long first(String sql, Object... params) throws SQLException {
+        try (PreparedStatement statement = prepare(sql, params);
+             ResultSet result = statement.executeQuery()){
+            assertTrue("No result for " + sql, result.next());
+            return result.getLong(1);
+        }
+    }
+
+    private void update(String sql, Object... params) throws SQLException {
+        try (PreparedStatement statement = prepare(sql, params)){
+            statement.executeUpdate();
+        }
+    }
+
+    private PreparedStatement prepare(String sql, Object... params) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(sql);
+        for (int x = 0; x < params.length; x++){
+            statement.setObject(x + 1, params[x]);
+        }
+        return statement;
+    }
+
+    private static long counter(SimulatedNode node, String name){
+        for (String line : node.getMetricsSummary()){
+            if (line.startsWith(name + " ")){
+                return Long.parseLong(line.substring(name.length() + 1));
+            }
+        }
+        return 0;
+    }
+}
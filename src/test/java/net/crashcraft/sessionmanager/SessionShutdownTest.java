@@ -0,0 +1,95 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.harness.ClusterSimulator;
+import net.crashcraft.sessionmanager.harness.MemoryDatabase;
+import net.crashcraft.sessionmanager.harness.SimulatedNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/*
+ * Stops a node the way the server does, through setEnabled(false) and onDisable, with players still online
+ */
+public class SessionShutdownTest {
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private Connection connection;
+    private SimulatedNode node;
+
+    @Before
+    public void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        String database = "shutdown-" + DATABASES.incrementAndGet();
+        connection = DriverManager.getConnection(MemoryDatabase.url(database), "sa", ""); // Holds the database open for the test
+
+        Map<String, Object> config = new HashMap<>();
+        config.put("shutdown.deadline", 10000);
+        node = ClusterSimulator.startNode("stopping", database, config);
+        node.addCache("simulated");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (node != null){
+            node.stop();
+        }
+
+        try (Statement statement = connection.createStatement()){
+            statement.execute("DROP ALL OBJECTS;");
+        }
+        connection.close();
+    }
+
+    @Test(timeout = 30000)
+    public void flushesOnlinePlayersThroughOnDisable() throws Exception {
+        for (int x = 0; x < 3; x++){
+            assertTrue(node.join(UUID.randomUUID(), "online" + x));
+        }
+        assertEquals(3, count("SELECT COUNT(*) FROM sessions;"));
+
+        SimulatedNode stopped = node;
+        node = null;
+        stopped.stop();
+
+        assertEquals("Sessions were left for recovery instead of flushed", 0, count("SELECT COUNT(*) FROM sessions;"));
+        assertEquals(3, hookRuns(stopped, "save"));
+        assertEquals(3, hookRuns(stopped, "inventory")); // The sync hooks run from the flush, the plugin is already disabled
+        assertEquals(3, hookRuns(stopped, "despawn"));
+        assertEquals(3, hookRuns(stopped, "unload"));
+    }
+
+    private long count(String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql);
+             ResultSet result = statement.executeQuery()){
+            assertTrue(result.next());
+            return result.getLong(1);
+        }
+    }
+
+    /*
+     * How often a cache hook ran, from the n= of its sessionmanager_hook_seconds histogram
+     */
+    private static long hookRuns(SimulatedNode node, String hook){
+        for (String line : node.getMetricsSummary()){
+            if (line.startsWith("sessionmanager_hook_seconds{") && line.contains("hook=\"" + hook + "\"")){
+                int start = line.indexOf(" n=") + 3;
+                return Long.parseLong(line.substring(start, line.indexOf(' ', start)));
+            }
+        }
+        return 0;
+    }
+}
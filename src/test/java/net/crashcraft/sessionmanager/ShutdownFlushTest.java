@@ -0,0 +1,221 @@
+package net.crashcraft.sessionmanager;
+
+import net.crashcraft.sessionmanager.api.SessionDependency;
+import net.crashcraft.sessionmanager.cache.MainThreadQueue;
+import net.crashcraft.sessionmanager.harness.HeadlessServer;
+import net.crashcraft.sessionmanager.metrics.SessionMetrics;
+import org.bukkit.plugin.Plugin;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ShutdownFlushTest {
+    private static final Logger LOGGER = Logger.getLogger("ShutdownFlushTest");
+
+    private HeadlessServer server;
+    private DependencyGraph dependencies;
+    private MainThreadQueue mainThread;
+    private List<CompletableFuture<Void>> hanging;
+
+    @Before
+    public void setUp(){
+        server = HeadlessServer.install("ShutdownFlushTest"); // Shared by every test in the class loader, never shut down
+        dependencies = new DependencyGraph(LOGGER, new SessionMetrics());
+        mainThread = new MainThreadQueue(plugin(), 5, new SessionMetrics());
+        hanging = new ArrayList<>();
+    }
+
+    @After
+    public void tearDown(){
+        for (CompletableFuture<Void> future : hanging){
+            future.complete(null);
+        }
+        dependencies.shutdown();
+    }
+
+    @Test
+    public void flushesEverySessionOnceItsDependenciesFinished() throws Exception {
+        Set<UUID> saved = ConcurrentHashMap.newKeySet();
+        register("slow", uuid -> CompletableFuture.runAsync(() -> {
+            sleep(50);
+            saved.add(uuid);
+        }));
+
+        List<ShutdownFlush.Session> sessions = sessions(20);
+        List<ShutdownFlush.Session> flushed = flush(sessions, 4, 10000);
+
+        assertEquals(uuids(sessions), uuids(flushed));
+        assertEquals(uuids(sessions), saved);
+    }
+
+    @Test
+    public void runsMainThreadWorkWhileTheMainThreadIsBlocked() throws Exception {
+        Thread main = server.getScheduler().callOnMain(Thread::currentThread);
+        Set<UUID> onMain = ConcurrentHashMap.newKeySet();
+        register("sync", uuid -> mainThread.submit(() -> {
+            if (Thread.currentThread() == main){
+                onMain.add(uuid);
+            }
+        }, true));
+
+        List<ShutdownFlush.Session> sessions = sessions(5);
+        List<ShutdownFlush.Session> flushed = flush(sessions, 2, 10000); // Nothing but the flush can run the queue, it would miss the deadline otherwise
+
+        assertEquals(uuids(sessions), uuids(flushed));
+        assertEquals(uuids(sessions), onMain);
+    }
+
+    @Test
+    public void closesTheLongestOnlineFirst() throws Exception {
+        register("instant", uuid -> null);
+
+        List<ShutdownFlush.Session> sessions = new ArrayList<>(Arrays.asList(
+                new ShutdownFlush.Session(UUID.randomUUID(), 1, 3000),
+                new ShutdownFlush.Session(UUID.randomUUID(), 2, 1000),
+                new ShutdownFlush.Session(UUID.randomUUID(), 3, 2000)));
+        List<ShutdownFlush.Session> flushed = flush(sessions, 1, 10000);
+
+        assertEquals(3, flushed.size());
+        assertEquals(2, flushed.get(0).getPlayerID());
+        assertEquals(3, flushed.get(1).getPlayerID());
+        assertEquals(1, flushed.get(2).getPlayerID());
+    }
+
+    @Test
+    public void leavesOutSessionsWithAFailedDependency() throws Exception {
+        List<ShutdownFlush.Session> sessions = sessions(3);
+        UUID thrown = sessions.get(0).getUuid();
+        UUID failed = sessions.get(1).getUuid();
+        UUID written = sessions.get(2).getUuid();
+
+        register("failing", uuid -> {
+            if (uuid.equals(thrown)){
+                throw new IllegalStateException("Unable to save " + uuid);
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (uuid.equals(failed)){
+                future.completeExceptionally(new IllegalStateException("Unable to save " + uuid));
+            } else {
+                future.complete(null);
+            }
+            return future;
+        });
+        register("working", uuid -> null);
+
+        List<ShutdownFlush.Session> flushed = flush(sessions, 3, 10000);
+
+        assertEquals(1, flushed.size());
+        assertEquals(written, flushed.get(0).getUuid());
+    }
+
+    @Test
+    public void stopsAtTheDeadline() throws Exception {
+        List<ShutdownFlush.Session> sessions = sessions(4);
+        UUID stuck = sessions.get(1).getUuid();
+
+        register("stuck", uuid -> {
+            if (!uuid.equals(stuck)){
+                return null;
+            }
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            hanging.add(future);
+            return future;
+        });
+
+        long start = System.currentTimeMillis();
+        List<ShutdownFlush.Session> flushed = flush(sessions, 2, 500);
+        long took = System.currentTimeMillis() - start;
+
+        assertTrue("The flush ran " + took + "ms past a 500ms deadline", took < 2500);
+        assertEquals(3, flushed.size());
+        assertFalse(uuids(flushed).contains(stuck));
+    }
+
+    /*
+     * Runs the flush on the main thread the way onDisable does
+     */
+    private List<ShutdownFlush.Session> flush(List<ShutdownFlush.Session> sessions, int workers, long deadline) throws Exception {
+        ShutdownFlush flush = new ShutdownFlush(dependencies, mainThread, workers, LOGGER);
+        long until = System.currentTimeMillis() + deadline;
+        return server.getScheduler().callOnMain(() -> flush.flush(sessions, until));
+    }
+
+    private void register(String name, Function<UUID, CompletableFuture<Void>> shutdown){
+        dependencies.register(new SessionDependency() {
+            @Override
+            public void onSessionCreate(UUID player){
+            }
+
+            @Override
+            public void onSessionClose(UUID player){
+            }
+
+            @Override
+            public CompletableFuture<Void> onSessionShutdown(UUID player){
+                return shutdown.apply(player);
+            }
+        }, name, -1);
+    }
+
+    private static List<ShutdownFlush.Session> sessions(int count){
+        List<ShutdownFlush.Session> sessions = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (int x = 0; x < count; x++){
+            sessions.add(new ShutdownFlush.Session(UUID.randomUUID(), x + 1, now - x));
+        }
+        return sessions;
+    }
+
+    private static Set<UUID> uuids(List<ShutdownFlush.Session> sessions){
+        Set<UUID> uuids = new HashSet<>();
+        for (ShutdownFlush.Session session : sessions){
+            uuids.add(session.getUuid());
+        }
+        return uuids;
+    }
+
+    private static Plugin plugin(){
+        return (Plugin) Proxy.newProxyInstance(Plugin.class.getClassLoader(), new Class[]{Plugin.class}, (proxy, method, args) -> {
+            switch (method.getName()){
+                case "getLogger":
+                    return LOGGER;
+                case "getName":
+                    return "ShutdownFlushTest";
+                case "isEnabled":
+                    return true;
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return "ShutdownFlushTest";
+                default:
+                    return null;
+            }
+        });
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package net.crashcraft.sessionmanager.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PlayerExecutorTest {
+    private static final long TIMEOUT = 5000;
+
+    private PlayerExecutor executor;
+    private CompletableFuture<Void> release;
+
+    @Before
+    public void setUp(){
+        executor = new PlayerExecutor("test", 4, Logger.getLogger("PlayerExecutorTest"));
+        release = new CompletableFuture<>();
+    }
+
+    @After
+    public void tearDown(){
+        release.complete(null); // Frees any lane a failed test left waiting
+    }
+
+    @Test
+    public void runsOnePlayersTasksInOrder() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        List<Integer> ran = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicBoolean overlapped = new AtomicBoolean();
+
+        CompletableFuture<?>[] futures = new CompletableFuture[200];
+        for (int x = 0; x < futures.length; x++){
+            int task = x;
+            futures[x] = executor.submit(uuid, () -> {
+                if (running.incrementAndGet() > 1){
+                    overlapped.set(true);
+                }
+                ran.add(task);
+                running.decrementAndGet();
+
+                if (task % 3 == 0){ // Finishes on another thread, the next task has to wait for it
+                    return CompletableFuture.runAsync(() -> sleep(1));
+                }
+                return null;
+            });
+        }
+        CompletableFuture.allOf(futures).get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        assertFalse("Two tasks of the same player ran at once", overlapped.get());
+        for (int x = 0; x < futures.length; x++){
+            assertEquals(x, (int) ran.get(x));
+        }
+    }
+
+    @Test
+    public void waitsForTheReturnedFuture() throws Exception {
+        UUID uuid = UUID.randomUUID();
+        CompletableFuture<Void> save = new CompletableFuture<>();
+        AtomicBoolean next = new AtomicBoolean();
+
+        CompletableFuture<Void> first = executor.submit(uuid, () -> save);
+        CompletableFuture<Void> second = executor.submit(uuid, () -> {
+            next.set(true);
+            return null;
+        });
+
+        Thread.sleep(100);
+        assertFalse("The next task started before the previous future completed", next.get());
+        assertFalse(first.isDone());
+
+        save.complete(null);
+        second.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(first.isDone());
+        assertTrue(next.get());
+    }
+
+    @Test
+    public void runsDifferentPlayersInParallel() throws Exception {
+        CountDownLatch both = new CountDownLatch(2);
+
+        CompletableFuture<Boolean> first = executor.submit(UUID.randomUUID(), () -> CompletableFuture.completedFuture(meet(both)));
+        CompletableFuture<Boolean> second = executor.submit(UUID.randomUUID(), () -> CompletableFuture.completedFuture(meet(both)));
+
+        assertTrue("Players did not run at the same time", first.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue("Players did not run at the same time", second.get(TIMEOUT, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void slowPlayerDoesNotHoldUpOthers() throws Exception {
+        UUID slow = UUID.randomUUID();
+        CompletableFuture<Void> held = executor.submit(slow, () -> release);
+
+        CompletableFuture<String> other = executor.submit(UUID.randomUUID(), () -> CompletableFuture.completedFuture("done"));
+
+        assertEquals("done", other.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(held.isDone());
+    }
+
+    @Test
+    public void failedTaskFailsItsFutureAndTheLaneGoesOn() throws Exception {
+        UUID uuid = UUID.randomUUID();
+
+        CompletableFuture<Void> thrown = executor.submit(uuid, () -> {
+            throw new IllegalStateException("thrown");
+        });
+        CompletableFuture<Void> failed = executor.submit(uuid, () -> {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("failed"));
+            return future;
+        });
+        CompletableFuture<Integer> after = executor.submit(uuid, () -> CompletableFuture.completedFuture(1));
+
+        assertEquals(1, (int) after.get(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals("thrown", failure(thrown).getMessage());
+        assertEquals("failed", failure(failed).getMessage());
+    }
+
+    @Test
+    public void laneIsReusedAfterItEmpties() throws Exception {
+        UUID uuid = UUID.randomUUID();
+
+        for (int x = 0; x < 1000; x++){ // Races submits against the lane retiring itself
+            int value = x;
+            assertEquals(value, (int) executor.submit(uuid, () -> CompletableFuture.completedFuture(value)).get(TIMEOUT, TimeUnit.MILLISECONDS));
+        }
+    }
+
+    private static boolean meet(CountDownLatch latch){
+        latch.countDown();
+        try {
+            return latch.await(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private static Throwable failure(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e){
+            return e.getCause();
+        }
+        fail("The future completed normally");
+        return null;
+    }
+
+    private static void sleep(long millis){
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}